@@ -0,0 +1,68 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.util.Page;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures both {@code getAggregatedStatus} overloads: the per-commit fold over all statuses of the head, and the
+ * fold over a whole inspection window. Nothing is cached between invocations here, so every window fold looks up
+ * all the states it needs again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregatedStatusBenchmark {
+    @Param({"10", "50", "200"})
+    public int windowSize;
+    @Param({"1", "5"})
+    public int statusesPerCommit;
+    @Param({"GREEN", "PENDING", "BROKEN", "UNBUILT"})
+    public InMemoryStash.BuildMix mix;
+    @Param({"0", "200"})
+    public long latencyMicros;
+    @Param({"true", "false"})
+    public boolean bulkLookups;
+
+    private InMemoryStash stash;
+    private InMemoryStash.Hooks hooks;
+    private Page<Changeset> window;
+
+    @Setup
+    public void setUp() {
+        stash = new InMemoryStash(windowSize, statusesPerCommit, mix, latencyMicros);
+        hooks = stash.createHooks(bulkLookups);
+        window = stash.getHistory(windowSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hooks.close();
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BuildState commit() {
+        return hooks.branchStateResolver.getAggregatedStatus(stash.getHead());
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BranchState window() {
+        return hooks.branchStateResolver.getAggregatedStatus(window, hooks.branchStateResolver.getDecisionDeadline(HookSettings.DEFAULT));
+    }
+}
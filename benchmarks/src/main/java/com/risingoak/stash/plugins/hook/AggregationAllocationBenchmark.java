@@ -0,0 +1,101 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.internal.build.InternalBuildStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the folds that run for every inspected commit on already known states, so that they can be checked for
+ * allocations with the GC profiler ({@code -prof gc}): {@code gc.alloc.rate.norm} should stay at about zero bytes
+ * per operation. Both the fold over a resolved window and the fold of the statuses of a single commit into its
+ * state are measured, the latter with and without required builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationAllocationBenchmark {
+    private InMemoryStash stash;
+    private InMemoryStash.Hooks hooks;
+    private CommitWindow pendingWindow;
+    private CommitWindow greenWindow;
+    private List<BuildStatus> pendingStatuses;
+    private List<BuildStatus> requiredStatuses;
+    private AggregationPolicy requiredBuilds;
+
+    @Setup
+    public void setUp() {
+        stash = new InMemoryStash(10, 1, InMemoryStash.BuildMix.GREEN, 0);
+        hooks = stash.createHooks(true);
+        pendingWindow = resolvedWindow(200, AbstractRejectHook.BuildState.INPROGRESS);
+        greenWindow = resolvedWindow(10, AbstractRejectHook.BuildState.UNDEFINED);
+        greenWindow.states[9] = AbstractRejectHook.BuildState.SUCCESSFUL;
+        pendingStatuses = statuses(BuildStatus.State.SUCCESSFUL, BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+        // the failed build is not required, so all three are read
+        requiredStatuses = statuses(BuildStatus.State.SUCCESSFUL, BuildStatus.State.FAILED, BuildStatus.State.SUCCESSFUL);
+        requiredBuilds = new AggregationPolicy("key-0 key-2", "", 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hooks.close();
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BranchState pendingWindow() {
+        // every state is known, so the deadline is never reached
+        return hooks.branchStateResolver.getAggregatedStatus(pendingWindow, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BranchState greenWindow() {
+        return hooks.branchStateResolver.getAggregatedStatus(greenWindow, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BuildState commitStatuses() {
+        return AggregationPolicy.DEFAULT.aggregate(pendingStatuses);
+    }
+
+    @Benchmark
+    public AbstractRejectHook.BuildState commitStatusesWithRequiredBuilds() {
+        return requiredBuilds.aggregate(requiredStatuses);
+    }
+
+    private static List<BuildStatus> statuses(BuildStatus.State... states) {
+        List<BuildStatus> statuses = new ArrayList<BuildStatus>();
+        for (int i = 0; i < states.length; i++) {
+            statuses.add(new InternalBuildStatus(states[i], "key-" + i, null, "http://example.com", null, new Date()));
+        }
+        return statuses;
+    }
+
+    private static CommitWindow resolvedWindow(int size, AbstractRejectHook.BuildState state) {
+        String[] ids = new String[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = "hash-" + i;
+        }
+        CommitWindow window = new CommitWindow(ids, ids);
+        Arrays.fill(window.states, state);
+        return window;
+    }
+}
@@ -0,0 +1,90 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.hook.repository.RepositoryHookContext;
+import com.atlassian.stash.hook.repository.RepositoryMergeRequestCheckContext;
+import com.atlassian.stash.repository.RefChange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the two hook entry points end to end. With {@code cached} the hooks keep their cache and verdict index
+ * across invocations, as they do in Stash between pushes to an unchanged branch; without it every invocation gets
+ * fresh hooks, so it pays for walking the history and looking up every state like the first push after a restart.
+ * <p/>
+ * The uncached runs rebuild the hooks before every invocation, which JMH only measures accurately when an
+ * invocation takes well over a millisecond; give them some {@code latencyMicros}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HookDecisionBenchmark {
+    @Param({"10", "50", "200"})
+    public int windowSize;
+    @Param({"1", "5"})
+    public int statusesPerCommit;
+    @Param({"GREEN", "PENDING", "BROKEN", "UNBUILT"})
+    public InMemoryStash.BuildMix mix;
+    @Param({"200"})
+    public long latencyMicros;
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private InMemoryStash stash;
+    private InMemoryStash.Hooks hooks;
+    private RepositoryHookContext pushContext;
+    private Collection<RefChange> refChanges;
+    private HookResponse hookResponse;
+    private RepositoryMergeRequestCheckContext mergeContext;
+
+    @Setup
+    public void setUp() {
+        stash = new InMemoryStash(windowSize, statusesPerCommit, mix, latencyMicros);
+        pushContext = stash.createPushContext();
+        refChanges = Collections.singletonList(stash.createPush());
+        hookResponse = stash.createHookResponse();
+        mergeContext = stash.createMergeContext();
+        hooks = stash.createHooks(true);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetHooks() {
+        if (!cached) {
+            hooks.close();
+            hooks = stash.createHooks(true);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        hooks.close();
+    }
+
+    @Benchmark
+    public boolean onReceive() {
+        return hooks.pushHook.onReceive(pushContext, refChanges, hookResponse);
+    }
+
+    @Benchmark
+    public void check() {
+        hooks.mergeHook.check(mergeContext);
+    }
+}
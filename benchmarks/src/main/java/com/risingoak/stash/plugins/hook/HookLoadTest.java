@@ -0,0 +1,258 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.hook.repository.RepositoryHookContext;
+import com.atlassian.stash.hook.repository.RepositoryMergeRequestCheckContext;
+import com.atlassian.stash.repository.RefChange;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives both hooks from many threads at once against {@link InMemoryStash}, the way a busy server sees pushes and
+ * pull request list renders, and reports throughput and latency percentiles of each. While it runs, build statuses
+ * keep being set on the head of the branch, so verdicts are invalidated and recomputed under load rather than served
+ * from the index throughout.
+ * <p/>
+ * Options are given as {@code name=value} arguments, see {@link #DEFAULTS}. With any of {@code maxP99Millis},
+ * {@code minThroughput} or {@code maxErrorRate} set the run fails, exiting with status 1, when it does not meet
+ * them, so it can gate a release:
+ * <pre>
+ * java -cp target/benchmarks.jar com.risingoak.stash.plugins.hook.HookLoadTest threads=200 maxP99Millis=250
+ * </pre>
+ */
+public class HookLoadTest {
+    static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+
+    static {
+        // concurrent pushes and merge checks
+        DEFAULTS.put("threads", "200");
+        // fraction of operations that are merge checks rather than pushes
+        DEFAULTS.put("mergeRatio", "0.8");
+        DEFAULTS.put("warmupSeconds", "5");
+        DEFAULTS.put("durationSeconds", "30");
+        DEFAULTS.put("historySize", "50");
+        DEFAULTS.put("statusesPerCommit", "3");
+        DEFAULTS.put("mix", "GREEN");
+        DEFAULTS.put("latencyMicros", "2000");
+        DEFAULTS.put("jitterMicros", "2000");
+        // fraction of service calls that fail
+        DEFAULTS.put("failureRate", "0");
+        // build statuses set on the head per second
+        DEFAULTS.put("statusesPerSecond", "5");
+        DEFAULTS.put("bulkLookups", "true");
+        DEFAULTS.put("maxP99Millis", "0");
+        DEFAULTS.put("minThroughput", "0");
+        DEFAULTS.put("maxErrorRate", "1");
+    }
+
+    private final Map<String, String> options;
+
+    HookLoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator))) {
+                System.err.println("Unknown option " + arg + ", expected name=value with name one of " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        System.exit(new HookLoadTest(options).run() ? 0 : 1);
+    }
+
+    /**
+     * @return whether the run met the configured thresholds
+     */
+    boolean run() throws InterruptedException {
+        final InMemoryStash stash = new InMemoryStash(getInt("historySize"), getInt("statusesPerCommit"),
+                InMemoryStash.BuildMix.valueOf(options.get("mix")), getInt("latencyMicros"), getInt("jitterMicros"),
+                getDouble("failureRate"));
+        final InMemoryStash.Hooks hooks = stash.createHooks(Boolean.parseBoolean(options.get("bulkLookups")));
+        int threads = getInt("threads");
+        final double mergeRatio = getDouble("mergeRatio");
+        final Recorder[] pushes = new Recorder[threads];
+        final Recorder[] merges = new Recorder[threads];
+        final long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(getInt("warmupSeconds"));
+        final long stopAt = measureFrom + TimeUnit.SECONDS.toNanos(getInt("durationSeconds"));
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        System.out.format("Running %d threads for %ss after %ss of warmup: %s%n", threads, options.get("durationSeconds"),
+                options.get("warmupSeconds"), options);
+        Thread buildServer = startBuildServer(stash, hooks, getDouble("statusesPerSecond"), stopAt);
+        try {
+            for (int i = 0; i < threads; i++) {
+                final Recorder push = pushes[i] = new Recorder();
+                final Recorder merge = merges[i] = new Recorder();
+                Thread worker = new Thread("load-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            drive(stash, hooks, mergeRatio, measureFrom, stopAt, push, merge);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+            done.await();
+        } finally {
+            buildServer.interrupt();
+            hooks.close();
+        }
+
+        double seconds = getInt("durationSeconds");
+        Recorder push = Recorder.merge(pushes);
+        Recorder merge = Recorder.merge(merges);
+        Recorder all = Recorder.merge(push, merge);
+        push.report("push", seconds);
+        merge.report("merge check", seconds);
+        all.report("all", seconds);
+        return check(all, seconds);
+    }
+
+    private static void drive(InMemoryStash stash, InMemoryStash.Hooks hooks, double mergeRatio, long measureFrom,
+                              long stopAt, Recorder push, Recorder merge) {
+        RepositoryHookContext pushContext = stash.createPushContext();
+        Collection<RefChange> refChanges = Collections.singletonList(stash.createPush());
+        HookResponse hookResponse = stash.createHookResponse();
+        RepositoryMergeRequestCheckContext mergeContext = stash.createMergeContext();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long start = System.nanoTime(); start < stopAt; start = System.nanoTime()) {
+            boolean isMerge = random.nextDouble() < mergeRatio;
+            boolean failed = false;
+            try {
+                if (isMerge) {
+                    hooks.mergeHook.check(mergeContext);
+                } else {
+                    hooks.pushHook.onReceive(pushContext, refChanges, hookResponse);
+                }
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            if (start >= measureFrom) {
+                (isMerge ? merge : push).record(System.nanoTime() - start, failed);
+            }
+        }
+    }
+
+    /**
+     * Sets build statuses on the head of the branch at the given rate, invalidating what depends on it like the
+     * build status listeners do.
+     */
+    private static Thread startBuildServer(final InMemoryStash stash, final InMemoryStash.Hooks hooks,
+                                           double statusesPerSecond, final long stopAt) {
+        final long intervalNanos = statusesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / statusesPerSecond) : 0;
+        Thread buildServer = new Thread("load-build-server") {
+            @Override
+            public void run() {
+                while (intervalNanos > 0 && System.nanoTime() < stopAt) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    hooks.branchStateCache.invalidateCommit(stash.getHead());
+                    hooks.branchVerdictIndex.invalidateCommit(stash.getHead());
+                }
+            }
+        };
+        buildServer.setDaemon(true);
+        buildServer.start();
+        return buildServer;
+    }
+
+    private boolean check(Recorder all, double seconds) {
+        boolean passed = true;
+        double maxP99Millis = getDouble("maxP99Millis");
+        if (maxP99Millis > 0 && all.percentile(0.99) / 1e6 > maxP99Millis) {
+            System.out.format(Locale.ROOT, "FAILED: p99 latency above %.1f ms%n", maxP99Millis);
+            passed = false;
+        }
+        double minThroughput = getDouble("minThroughput");
+        if (minThroughput > 0 && all.count / seconds < minThroughput) {
+            System.out.format(Locale.ROOT, "FAILED: throughput below %.1f ops/s%n", minThroughput);
+            passed = false;
+        }
+        double maxErrorRate = getDouble("maxErrorRate");
+        if (all.count > 0 && (double) all.errors / all.count > maxErrorRate) {
+            System.out.format(Locale.ROOT, "FAILED: error rate above %.4f%n", maxErrorRate);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private int getInt(String option) {
+        return Integer.parseInt(options.get(option));
+    }
+
+    private double getDouble(String option) {
+        return Double.parseDouble(options.get(option));
+    }
+
+    /**
+     * The latencies of the operations of one kind done by one thread, so recording them takes no locks.
+     */
+    static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        void record(long nanos, boolean failed) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (failed) {
+                errors++;
+            }
+        }
+
+        /**
+         * @return the latency, in nanoseconds, below which {@code fraction} of the operations completed; the
+         *         recorder must have been sorted by {@link #merge(Recorder...)}
+         */
+        long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            return latencies[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+        }
+
+        void report(String operation, double seconds) {
+            System.out.format(Locale.ROOT, "%-12s %9d ops %10.1f ops/s %7d errors   p50 %8.2f ms   p90 %8.2f ms   " +
+                            "p99 %8.2f ms   p99.9 %8.2f ms   max %8.2f ms%n", operation, count, count / seconds, errors,
+                    percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6, percentile(0.999) / 1e6,
+                    percentile(1) / 1e6);
+        }
+
+        static Recorder merge(Recorder... recorders) {
+            Recorder merged = new Recorder();
+            int total = 0;
+            for (Recorder recorder : recorders) {
+                total += recorder.count;
+            }
+            merged.latencies = new long[Math.max(1, total)];
+            for (Recorder recorder : recorders) {
+                System.arraycopy(recorder.latencies, 0, merged.latencies, merged.count, recorder.count);
+                merged.count += recorder.count;
+                merged.errors += recorder.errors;
+            }
+            Arrays.sort(merged.latencies, 0, merged.count);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.build.BuildStats;
+import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.commit.ChangesetsBetweenRequest;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.MinimalChangeset;
+import com.atlassian.stash.hook.HookResponse;
+import com.atlassian.stash.hook.repository.RepositoryHookContext;
+import com.atlassian.stash.hook.repository.RepositoryMergeRequestCheckContext;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.scm.pull.MergeRequest;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+
+import javax.management.MBeanServerFactory;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-ins for the Stash services the hooks talk to, so the decision path can be measured without a
+ * running Stash. The services are dynamic proxies over a linear history of commits, newest first, whose build
+ * statuses follow a {@link BuildMix}. Every call to the build status store, the commit history or the ref service
+ * waits for the configured latency first, plus up to the configured jitter, to model a remote database, and fails
+ * at the configured rate.
+ */
+public class InMemoryStash {
+    public static final String BRANCH_ID = "refs/heads/master";
+    public static final String PUSHED_COMMIT = "pushed";
+
+    private final List<String> history = new ArrayList<String>();
+    private final Map<String, List<BuildStatus>> statuses = new HashMap<String, List<BuildStatus>>();
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double failureRate;
+
+    final Repository repository;
+    final BuildStatusService buildStatusService;
+    final CommitService commitService;
+    final RefService refService;
+    final EventPublisher eventPublisher;
+    final PluginSettingsFactory pluginSettingsFactory;
+
+    /**
+     * How the build statuses of the history are laid out, from the head down.
+     */
+    public static enum BuildMix {
+        /** every commit has passed, so the head decides */
+        GREEN,
+        /** every commit is still building except the oldest, so the whole history is inspected */
+        PENDING,
+        /** the newer half is still building and the older half has failed */
+        BROKEN,
+        /** nothing has been built, so the whole history is inspected and nothing decides */
+        UNBUILT
+    }
+
+    public InMemoryStash(int historySize, int statusesPerCommit, BuildMix mix, long latencyMicros) {
+        this(historySize, statusesPerCommit, mix, latencyMicros, 0, 0);
+    }
+
+    /**
+     * @param jitterMicros the most a call may take on top of {@code latencyMicros}, uniformly distributed
+     * @param failureRate  the fraction of calls that throw instead of answering
+     */
+    public InMemoryStash(int historySize, int statusesPerCommit, BuildMix mix, long latencyMicros, long jitterMicros,
+                         double failureRate) {
+        this.latencyNanos = latencyMicros * 1000;
+        this.jitterNanos = jitterMicros * 1000;
+        this.failureRate = failureRate;
+        for (int i = 0; i < historySize; i++) {
+            String id = String.format("%040x", i + 1);
+            history.add(id);
+            statuses.put(id, createStatuses(getState(mix, i, historySize), statusesPerCommit));
+        }
+        statuses.put(PUSHED_COMMIT, Collections.<BuildStatus>emptyList());
+
+        repository = stub(Repository.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getId".equals(method) ? 1 : "getSlug".equals(method) ? "benchmark" : null;
+            }
+        });
+        buildStatusService = stub(BuildStatusService.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                if ("findAll".equals(method)) {
+                    serve();
+                    return page(getStatuses((String) args[0]), true);
+                }
+                if ("getStats".equals(method)) {
+                    serve();
+                    return getStats((Set<?>) args[0]);
+                }
+                return null;
+            }
+        });
+        commitService = stub(CommitService.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                if ("getChangesets".equals(method)) {
+                    serve();
+                    PageRequest request = (PageRequest) args[args.length - 1];
+                    int from = history.indexOf(args[1]);
+                    return from < 0 ? emptyPage() : slice(from + request.getStart(), request.getLimit(), history.size());
+                }
+                if ("getChangesetsBetween".equals(method)) {
+                    serve();
+                    return getHistoryBetween((ChangesetsBetweenRequest) args[0], (PageRequest) args[1]);
+                }
+                if ("getChangeset".equals(method)) {
+                    serve();
+                    return changeset((String) args[1], null);
+                }
+                return null;
+            }
+        });
+        final Branch branch = stub(Branch.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getId".equals(method) ? BRANCH_ID : "getDisplayId".equals(method) ? "master" :
+                        "getLatestChangeset".equals(method) ? getHead() : null;
+            }
+        });
+        refService = stub(RefService.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                if ("getDefaultBranch".equals(method)) {
+                    serve();
+                    return branch;
+                }
+                return null;
+            }
+        });
+        eventPublisher = stub(EventPublisher.class, null);
+        final PluginSettings pluginSettings = stub(PluginSettings.class, null);
+        pluginSettingsFactory = stub(PluginSettingsFactory.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return pluginSettings;
+            }
+        });
+    }
+
+    public String getHead() {
+        return history.get(0);
+    }
+
+    /**
+     * @return the first {@code limit} commits of the history, without paying the latency of the commit service
+     */
+    public Page<Changeset> getHistory(int limit) {
+        return slice(0, limit, history.size());
+    }
+
+    /**
+     * @return both hooks wired to these services, sharing a fresh cache, lookup executor and verdict index
+     */
+    public Hooks createHooks(boolean bulkLookups) {
+        return new Hooks(this, bulkLookups);
+    }
+
+    public RefChange createPush() {
+        return new SimpleRefChange.Builder().refId(BRANCH_ID).fromHash(getHead()).toHash(PUSHED_COMMIT)
+                .type(RefChangeType.UPDATE).build();
+    }
+
+    public RepositoryHookContext createPushContext() {
+        return new RepositoryHookContext(repository, createSettings());
+    }
+
+    public HookResponse createHookResponse() {
+        final PrintWriter writer = new PrintWriter(new DiscardingWriter());
+        return stub(HookResponse.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return writer;
+            }
+        });
+    }
+
+    public RepositoryMergeRequestCheckContext createMergeContext() {
+        final PullRequestRef toRef = stub(PullRequestRef.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getId".equals(method) ? BRANCH_ID : "getDisplayId".equals(method) ? "master" :
+                        "getLatestChangeset".equals(method) ? getHead() : "getRepository".equals(method) ? repository : null;
+            }
+        });
+        final PullRequest pullRequest = stub(PullRequest.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getToRef".equals(method) ? toRef : null;
+            }
+        });
+        MergeRequest mergeRequest = stub(MergeRequest.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getPullRequest".equals(method) ? pullRequest : null;
+            }
+        });
+        return new RepositoryMergeRequestCheckContext(repository, createSettings(), mergeRequest);
+    }
+
+    private Settings createSettings() {
+        return stub(Settings.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "asMap".equals(method) ? Collections.<String, Object>emptyMap() : null;
+            }
+        });
+    }
+
+    private static BuildStatus.State getState(BuildMix mix, int index, int historySize) {
+        switch (mix) {
+            case GREEN:
+                return BuildStatus.State.SUCCESSFUL;
+            case PENDING:
+                return index == historySize - 1 ? BuildStatus.State.SUCCESSFUL : BuildStatus.State.INPROGRESS;
+            case BROKEN:
+                return index < historySize / 2 ? BuildStatus.State.INPROGRESS : BuildStatus.State.FAILED;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates {@code count} statuses that aggregate to {@code state}, with the deciding one last so the per-commit
+     * fold has to read all of them.
+     */
+    private static List<BuildStatus> createStatuses(BuildStatus.State state, int count) {
+        List<BuildStatus> result = new ArrayList<BuildStatus>();
+        if (state == null) {
+            return result;
+        }
+        for (int i = 0; i < count - 1; i++) {
+            result.add(status(BuildStatus.State.SUCCESSFUL));
+        }
+        result.add(status(state));
+        return result;
+    }
+
+    private List<BuildStatus> getStatuses(String id) {
+        List<BuildStatus> result = statuses.get(id);
+        return result == null ? Collections.<BuildStatus>emptyList() : result;
+    }
+
+    private Map<String, BuildStats> getStats(Set<?> ids) {
+        Map<String, BuildStats> result = new HashMap<String, BuildStats>();
+        for (Object id : ids) {
+            final int[] counts = new int[3];
+            for (BuildStatus status : getStatuses((String) id)) {
+                counts[status.getState() == BuildStatus.State.SUCCESSFUL ? 0 : status.getState() == BuildStatus.State.INPROGRESS ? 1 : 2]++;
+            }
+            result.put((String) id, stub(BuildStats.class, new Answer() {
+                @Override
+                public Object answer(String method, Object[] args) {
+                    return "getSuccessfulCount".equals(method) ? counts[0] : "getInProgressCount".equals(method) ? counts[1] :
+                            "getFailedCount".equals(method) ? counts[2] : null;
+                }
+            }));
+        }
+        return result;
+    }
+
+    /**
+     * @return up to {@code limit} commits of the history from {@code start}, stopping before {@code stop}
+     */
+    private Page<Changeset> slice(int start, int limit, int stop) {
+        List<Changeset> values = new ArrayList<Changeset>();
+        int end = Math.min(stop, start + limit);
+        for (int i = start; i < end; i++) {
+            values.add(changeset(history.get(i), i + 1 < history.size() ? history.get(i + 1) : null));
+        }
+        return page(values, end >= stop);
+    }
+
+    private Page<Changeset> getHistoryBetween(ChangesetsBetweenRequest request, PageRequest pageRequest) {
+        int from = history.indexOf(request.getIncludes().iterator().next());
+        int to = request.getExcludes().isEmpty() ? history.size() : history.indexOf(request.getExcludes().iterator().next());
+        if (from < 0 || to < from) {
+            return emptyPage();
+        }
+        return slice(from + pageRequest.getStart(), pageRequest.getLimit(), to);
+    }
+
+    private static Page<Changeset> emptyPage() {
+        return page(Collections.<Changeset>emptyList(), true);
+    }
+
+    private void serve() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos + 1) : 0);
+        long until = System.nanoTime() + delay;
+        for (long remaining = delay; remaining > 0; remaining = until - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new IllegalStateException("Simulated service failure");
+        }
+    }
+
+    private static BuildStatus status(final BuildStatus.State state) {
+        return stub(BuildStatus.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                return "getState".equals(method) ? state : null;
+            }
+        });
+    }
+
+    private static Changeset changeset(final String id, final String parentId) {
+        final List<MinimalChangeset> parents = parentId == null ? Collections.<MinimalChangeset>emptyList() :
+                Collections.singletonList(stub(MinimalChangeset.class, new Answer() {
+                    @Override
+                    public Object answer(String method, Object[] args) {
+                        return "getId".equals(method) ? parentId : "getDisplayId".equals(method) ? parentId.substring(0, 11) : null;
+                    }
+                }));
+        return stub(Changeset.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                if ("getId".equals(method)) {
+                    return id;
+                } else if ("getDisplayId".equals(method)) {
+                    return id.length() > 11 ? id.substring(0, 11) : id;
+                } else if ("getMessage".equals(method)) {
+                    return "";
+                } else if ("getParents".equals(method)) {
+                    return parents;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> Page<T> page(final List<T> values, final boolean lastPage) {
+        return stub(Page.class, new Answer() {
+            @Override
+            public Object answer(String method, Object[] args) {
+                if ("getValues".equals(method)) {
+                    return values;
+                } else if ("getIsLastPage".equals(method)) {
+                    return lastPage;
+                } else if ("getSize".equals(method)) {
+                    return values.size();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Answers calls to a stub by method name; {@code null} answers become the default value of the return type.
+     */
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(final Class<?> type, final Answer answer) {
+        return (T) Proxy.newProxyInstance(InMemoryStash.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getDeclaringClass() == Object.class) {
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    return "hashCode".equals(method.getName()) ? System.identityHashCode(proxy) : type.getSimpleName();
+                }
+                Object result = answer == null ? null : answer.answer(method.getName(), args == null ? new Object[0] : args);
+                return result != null ? result : getDefaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    public static class Hooks {
+        final BranchStateCache branchStateCache;
+        final StatusLookupExecutor statusLookupExecutor;
+        final BranchVerdictIndex branchVerdictIndex;
+        final HookMetrics hookMetrics;
+        final BranchStateResolver branchStateResolver;
+        final BrokenBuildHook pushHook;
+        final MergeRequestBlockHook mergeHook;
+
+        private Hooks(InMemoryStash stash, boolean bulkLookups) {
+            branchStateCache = new BranchStateCache(stash.eventPublisher);
+            statusLookupExecutor = new StatusLookupExecutor(4, 100, 10000, true, bulkLookups);
+            branchVerdictIndex = new BranchVerdictIndex(stash.eventPublisher, stash.pluginSettingsFactory);
+            hookMetrics = new HookMetrics(MBeanServerFactory.newMBeanServer());
+            branchStateResolver = new BranchStateResolver(stash.commitService, stash.buildStatusService, branchStateCache,
+                    statusLookupExecutor, branchVerdictIndex, hookMetrics);
+            pushHook = new BrokenBuildHook(stash.refService, stash.commitService, branchStateResolver, branchVerdictIndex,
+                    hookMetrics, null, null);
+            mergeHook = new MergeRequestBlockHook(stash.refService, stash.commitService, branchStateResolver, branchVerdictIndex,
+                    hookMetrics, null);
+        }
+
+        public void close() {
+            statusLookupExecutor.destroy();
+            branchVerdictIndex.destroy();
+        }
+    }
+
+    private static class DiscardingWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,81 +1,102 @@
 package com.risingoak.stash.plugins.hook;
 
 
-import com.atlassian.stash.build.BuildStatus;
-import com.atlassian.stash.build.BuildStatusService;
-import com.atlassian.stash.content.Changeset;
 import com.atlassian.stash.commit.CommitService;
 import com.atlassian.stash.repository.RefService;
-import com.atlassian.stash.util.Page;
+import com.atlassian.stash.repository.Repository;
 
+/**
+ * What the push and merge hooks share: the services they read the branches from, and the tracing of their
+ * decisions. The state of a branch is decided by the {@link BranchStateResolver}.
+ */
 public class AbstractRejectHook {
+    public static final String PLUGIN_KEY = "com.risingoak.stash.plugins.stash-broken-build-hook";
+    public static final String PUSH_HOOK_KEY = PLUGIN_KEY + ":brokenBuildPushHook";
+    public static final String MERGE_HOOK_KEY = PLUGIN_KEY + ":brokenBuildMergeHook";
     public static final int COMMITS_TO_INSPECT = 10;
     protected RefService repositoryMetadataService;
-    protected BuildStatusService buildStatusService;
     protected CommitService historyService;
+    protected BranchStateResolver branchStateResolver;
+    protected BranchVerdictIndex branchVerdictIndex;
+    protected HookMetrics hookMetrics;
+    protected DecisionTraceLog decisionTraceLog;
 
-    public AbstractRejectHook(RefService repositoryMetadataService, CommitService historyService, BuildStatusService buildStatusService) {
+    public AbstractRejectHook(RefService repositoryMetadataService, CommitService historyService, BranchStateResolver branchStateResolver,
+                              BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, DecisionTraceLog decisionTraceLog) {
         this.repositoryMetadataService = repositoryMetadataService;
         this.historyService = historyService;
-        this.buildStatusService = buildStatusService;
+        this.branchStateResolver = branchStateResolver;
+        this.branchVerdictIndex = branchVerdictIndex;
+        this.hookMetrics = hookMetrics;
+        this.decisionTraceLog = decisionTraceLog;
     }
 
-    protected BuildState getAggregatedStatus(String theHash) {
-        boolean hasPending = false;
-        boolean hasSuccess = false;
-        for (BuildStatus status : buildStatusService.findAll(theHash).getValues()) {
-            if (BuildStatus.State.FAILED == status.getState()) {
-                return BuildState.FAILED;
-            } else if (status.getState() == BuildStatus.State.INPROGRESS) {
-                hasPending = true;
-            } else if (status.getState() == BuildStatus.State.SUCCESSFUL) {
-                hasSuccess = true;
-            }
-        }
-
-        if (hasPending) {
-            return BuildState.INPROGRESS;
+    /**
+     * Records the trace of a decision, along with the commits last inspected on its branch if they were inspected
+     * at the head it was decided at. Does nothing unless decisions are traced.
+     */
+    protected void traceDecision(DecisionTrace.Builder trace, Repository repository, HookSettings settings, boolean accepted) {
+        if (decisionTraceLog == null || !decisionTraceLog.isEnabled()) {
+            return;
         }
-        if (hasSuccess) {
-            return BuildState.SUCCESSFUL;
+        if (trace.head != null) {
+            BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.getLocal(repository, trace.refId, settings);
+            if (indexed != null && trace.head.equals(indexed.head)) {
+                trace.window(indexed.window);
+            }
         }
-        return BuildState.UNDEFINED;
+        decisionTraceLog.record(trace.build(accepted));
     }
 
-    protected BranchState getAggregatedStatus(Page<Changeset> changesets) {
-        boolean hasPending = false;
-        for (Changeset changeset : changesets.getValues()) {
-            BuildState aggregatedStatus = getAggregatedStatus(changeset.getId());
-            switch (aggregatedStatus) {
-                case UNDEFINED:
-                    continue;
-                case SUCCESSFUL:
-                    return new BranchState(BuildState.SUCCESSFUL);
-                case FAILED:
-                    return new BranchState(BuildState.FAILED, changeset.getDisplayId());
-                case INPROGRESS:
-                    hasPending = true;
-                    break;
+    /**
+     * The verdict for a branch. Verdicts that do not point at a commit are shared, so the fold does not allocate
+     * unless the branch is broken.
+     */
+    protected static class BranchState {
+        static final BranchState SUCCESSFUL = new BranchState(BuildState.SUCCESSFUL);
+        static final BranchState INPROGRESS = new BranchState(BuildState.INPROGRESS);
+        static final BranchState UNDEFINED = new BranchState(BuildState.UNDEFINED);
+        private static final BranchState[] TIMED_OUT = new BranchState[BuildState.values().length];
+
+        static {
+            for (BuildState state : BuildState.values()) {
+                TIMED_OUT[state.ordinal()] = new BranchState(state, null, true);
             }
         }
-        if (hasPending) {
-            return new BranchState(BuildState.INPROGRESS);
-        }
-        return new BranchState(BuildState.UNDEFINED);
-    }
 
-    protected static class BranchState {
         protected final BuildState state;
         protected final String commit;
+        protected final boolean timedOut;
+        protected final boolean stale;
 
         public BranchState(BuildState state) {
-            this.state = state;
-            this.commit = null;
+            this(state, null);
         }
 
         public BranchState(BuildState state, String commit) {
+            this(state, commit, false);
+        }
+
+        public BranchState(BuildState state, String commit, boolean timedOut) {
+            this(state, commit, timedOut, false);
+        }
+
+        private BranchState(BuildState state, String commit, boolean timedOut, boolean stale) {
             this.state = state;
             this.commit = commit;
+            this.timedOut = timedOut;
+            this.stale = stale;
+        }
+
+        /**
+         * @return this verdict, marked as used in place of one that could not be decided in time
+         */
+        BranchState stale() {
+            return new BranchState(state, commit, timedOut, true);
+        }
+
+        static BranchState timedOut(BuildState state) {
+            return TIMED_OUT[state.ordinal()];
         }
     }
 
@@ -0,0 +1,151 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.build.BuildStatus;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides the build state of a commit from its build statuses. By default every build counts: any failed build
+ * fails the commit, any running build makes it pending, and otherwise any successful build makes it successful.
+ * <p/>
+ * A repository can name its required builds, in which case every other build is optional, or name optional builds
+ * directly. Optional builds, such as nightly performance runs, never fail a commit or hold it up, and a commit only
+ * counts as successful once all of its required builds are; until then it is treated like a commit that has not
+ * been built. Builds still in progress after the configured number of minutes are taken to have been abandoned and
+ * are ignored.
+ * <p/>
+ * Policies are compiled once per repository configuration and applied in a single pass over the statuses of a
+ * commit. Since build keys and dates are not part of the bulk build statistics, commits are looked up one at a time
+ * under any policy other than the default.
+ */
+public class AggregationPolicy {
+    public static final int MAX_REQUIRED_BUILDS = 64;
+
+    public static final AggregationPolicy DEFAULT = new AggregationPolicy("", "", 0);
+
+    private static final int INPROGRESS_BIT = 1 << BuildStatus.State.INPROGRESS.ordinal();
+    private static final int SUCCESSFUL_BIT = 1 << BuildStatus.State.SUCCESSFUL.ordinal();
+
+    // the bit of each required build in the mask of required builds seen successful
+    private final Map<String, Long> required = new HashMap<String, Long>();
+    private final Set<String> optional = new HashSet<String>();
+    private final long allRequired;
+    private final long staleAfter;
+    private final String key;
+
+    /**
+     * @param requiredBuilds the keys of the required builds, separated by commas or whitespace; if there are any,
+     *                       every other build is optional
+     * @param optionalBuilds the keys of further optional builds
+     * @param staleMinutes   how many minutes a build may stay in progress before it is ignored, or {@code 0} to
+     *                       never ignore running builds
+     */
+    public AggregationPolicy(String requiredBuilds, String optionalBuilds, int staleMinutes) {
+        TreeSet<String> requiredKeys = split(requiredBuilds);
+        TreeSet<String> optionalKeys = split(optionalBuilds);
+        if (requiredKeys.size() > MAX_REQUIRED_BUILDS) {
+            throw new IllegalArgumentException("At most " + MAX_REQUIRED_BUILDS + " builds can be required");
+        }
+        long bit = 1;
+        for (String requiredKey : requiredKeys) {
+            required.put(requiredKey, bit);
+            bit <<= 1;
+        }
+        for (String optionalKey : optionalKeys) {
+            optional.add(optionalKey);
+        }
+        allRequired = bit - 1;
+        staleAfter = TimeUnit.MINUTES.toMillis(Math.max(0, staleMinutes));
+        key = isDefault() ? "" : hash("r=" + requiredKeys + ";o=" + optionalKeys + ";s=" + staleAfter);
+    }
+
+    public boolean isDefault() {
+        return required.isEmpty() && optional.isEmpty() && staleAfter == 0;
+    }
+
+    /**
+     * @return a short key that differs between policies that can decide differently, empty for the default policy
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return whether a commit decided to be in {@code state} stays so until one of its build statuses changes, which
+     *         is not the case for running builds once they can become stale
+     */
+    public boolean isKept(AbstractRejectHook.BuildState state) {
+        return staleAfter == 0 || state != AbstractRejectHook.BuildState.INPROGRESS;
+    }
+
+    /**
+     * Folds the statuses of a commit into its build state, stopping at the first failed build that counts.
+     */
+    public AbstractRejectHook.BuildState aggregate(Iterable<? extends BuildStatus> statuses) {
+        long now = staleAfter > 0 ? System.currentTimeMillis() : 0;
+        // one bit per BuildStatus.State seen so far
+        int seen = 0;
+        long requiredSeen = 0;
+        for (BuildStatus status : statuses) {
+            BuildStatus.State state = status.getState();
+            if (state == null) {
+                continue;
+            }
+            Long requiredBit = null;
+            if (!required.isEmpty() || !optional.isEmpty()) {
+                String buildKey = status.getKey();
+                requiredBit = required.get(buildKey);
+                if ((requiredBit == null && !required.isEmpty()) || optional.contains(buildKey)) {
+                    continue;
+                }
+            }
+            if (state == BuildStatus.State.FAILED) {
+                return AbstractRejectHook.BuildState.FAILED;
+            }
+            if (state == BuildStatus.State.INPROGRESS && staleAfter > 0 && status.getDateAdded() != null &&
+                    now - status.getDateAdded().getTime() > staleAfter) {
+                continue;
+            }
+            seen |= 1 << state.ordinal();
+            if (requiredBit != null && state == BuildStatus.State.SUCCESSFUL) {
+                requiredSeen |= requiredBit;
+            }
+        }
+
+        if ((seen & INPROGRESS_BIT) != 0) {
+            return AbstractRejectHook.BuildState.INPROGRESS;
+        }
+        if (required.isEmpty()) {
+            return (seen & SUCCESSFUL_BIT) != 0 ? AbstractRejectHook.BuildState.SUCCESSFUL : AbstractRejectHook.BuildState.UNDEFINED;
+        }
+        // a commit whose required builds have not all passed, nor are still running, counts as not built
+        return requiredSeen == allRequired ? AbstractRejectHook.BuildState.SUCCESSFUL : AbstractRejectHook.BuildState.UNDEFINED;
+    }
+
+    private static TreeSet<String> split(String keys) {
+        TreeSet<String> split = new TreeSet<String>();
+        for (String buildKey : keys.split("[,\\s]+")) {
+            if (buildKey.length() > 0) {
+                split.add(buildKey);
+            }
+        }
+        return split;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash, short enough to be part of every cache key and long enough not to collide in practice.
+     */
+    private static String hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+}
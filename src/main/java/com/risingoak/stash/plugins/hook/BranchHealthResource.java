@@ -0,0 +1,96 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.google.gson.stream.JsonWriter;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Reports the build state of the default branch of every repository, or of every repository in a project, so that
+ * broken branches can be found without pushing to them. Results are written out as each repository is evaluated:
+ * <pre>
+ * {"repositories":[{"project":"PRJ","repository":"repo","id":1,"branch":"master","state":"FAILED","commit":"abc123"},...],
+ *  "scanned":2,"broken":1,"isLastPage":false,"nextPageStart":100}
+ * </pre>
+ * Repositories without a default branch have no branch or state, and those that could not be evaluated have an
+ * {@code error} instead. Only {@code limit} repositories are listed per request, from {@code start} on; the rest are
+ * reported by requesting again from {@code nextPageStart}.
+ */
+@Path("/health")
+@Produces(MediaType.APPLICATION_JSON)
+public class BranchHealthResource {
+    public static final int MAX_LIMIT = 1000;
+
+    private final BranchHealthScanner branchHealthScanner;
+
+    public BranchHealthResource(BranchHealthScanner branchHealthScanner) {
+        this.branchHealthScanner = branchHealthScanner;
+    }
+
+    @GET
+    public Response getHealth(@QueryParam("project") final String projectKey, @QueryParam("start") @DefaultValue("0") int start,
+                              @QueryParam("limit") @DefaultValue("100") int limit) {
+        final int from = Math.max(0, start);
+        final int count = Math.max(1, Math.min(limit, MAX_LIMIT));
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                writeHealth(projectKey, from, count, output);
+            }
+        }).build();
+    }
+
+    void writeHealth(String projectKey, int start, int limit, OutputStream output) throws IOException {
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, "UTF-8"));
+        final int[] counts = new int[2];
+        writer.beginObject().name("repositories").beginArray();
+        Integer nextStart = branchHealthScanner.scan(projectKey, start, limit, new BranchHealthScanner.Listener() {
+            @Override
+            public void onResult(BranchHealthScanner.RepositoryHealth health) throws IOException {
+                writeHealth(writer, health);
+                counts[0]++;
+                if (health.isBroken()) {
+                    counts[1]++;
+                }
+                // flushed for every repository, so a slow scan shows its progress
+                writer.flush();
+            }
+        });
+        writer.endArray().name("scanned").value(counts[0]).name("broken").value(counts[1])
+                .name("isLastPage").value(nextStart == null);
+        if (nextStart != null) {
+            writer.name("nextPageStart").value(nextStart);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void writeHealth(JsonWriter writer, BranchHealthScanner.RepositoryHealth health) throws IOException {
+        writer.beginObject()
+                .name("project").value(health.repository.getProject().getKey())
+                .name("repository").value(health.repository.getSlug())
+                .name("id").value(health.repository.getId());
+        if (health.branch != null) {
+            writer.name("branch").value(health.branch);
+        }
+        if (health.state != null) {
+            writer.name("state").value(health.state.state.name());
+            if (health.state.commit != null) {
+                writer.name("commit").value(health.state.commit);
+            }
+        }
+        if (health.error != null) {
+            writer.name("error").value(health.error);
+        }
+        writer.endObject();
+    }
+}
@@ -0,0 +1,265 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.hook.repository.RepositoryHook;
+import com.atlassian.stash.hook.repository.RepositoryHookService;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the default branch of many repositories at once, for reporting rather than for a push. Only repositories
+ * with one of the hooks enabled are evaluated, with the settings of that hook, so branches the hooks already know
+ * about are answered from the {@link BranchVerdictIndex} and the {@link BranchStateCache}. Verdicts computed for the
+ * report are not remembered; see {@link BranchStateResolver#evaluate}.
+ * <p/>
+ * Repositories are read a page at a time and evaluated on a small pool of the scanner's own, with at most as many
+ * evaluations in flight per scan as the pool has threads, so a scan holds no more than a page of them. A scan only
+ * lists as many repositories as it is asked to, so that reporting on a large instance is spread over several
+ * requests. Build statuses are looked up in bulk on the scanner's threads; only when the status store cannot
+ * look them up in bulk, or a repository uses another aggregation policy, are they looked up one by one on the
+ * {@link StatusLookupExecutor} pool shared with pushes and merge checks, by at most that many evaluations at once.
+ */
+public class BranchHealthScanner implements DisposableBean {
+    public static final String THREADS_PROPERTY = "plugin.broken-build-hook.scan.threads";
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int PAGE_SIZE = 100;
+
+    private final RefService repositoryMetadataService;
+    private final BranchStateResolver branchStateResolver;
+    private final StatusLookupExecutor statusLookupExecutor;
+    private final RepositoryService repositoryService;
+    private final RepositoryHookService repositoryHookService;
+    private final SecurityService securityService;
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+
+    public BranchHealthScanner(RefService repositoryMetadataService, BranchStateResolver branchStateResolver,
+                               StatusLookupExecutor statusLookupExecutor, RepositoryService repositoryService,
+                               RepositoryHookService repositoryHookService, SecurityService securityService,
+                               ApplicationPropertiesService propertiesService) {
+        this(repositoryMetadataService, branchStateResolver, statusLookupExecutor, repositoryService, repositoryHookService,
+                securityService, propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+    }
+
+    /**
+     * @param securityService what to read the settings of the hooks with, or {@code null} to read them as the caller
+     */
+    BranchHealthScanner(RefService repositoryMetadataService, BranchStateResolver branchStateResolver,
+                        StatusLookupExecutor statusLookupExecutor, RepositoryService repositoryService,
+                        RepositoryHookService repositoryHookService, SecurityService securityService, int threads) {
+        this.repositoryMetadataService = repositoryMetadataService;
+        this.branchStateResolver = branchStateResolver;
+        this.statusLookupExecutor = statusLookupExecutor;
+        this.repositoryService = repositoryService;
+        this.repositoryHookService = repositoryHookService;
+        this.securityService = securityService;
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "broken-build-hook-scan-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Evaluates the default branch of up to {@code limit} of the repositories visible to the current user, starting
+     * at {@code start}, and hands the result for each that has one of the hooks enabled to {@code listener} on the
+     * calling thread as soon as it is known, in no particular order. If the listener fails the scan stops and the
+     * evaluations still in flight are cancelled.
+     *
+     * @param projectKey the project to scan, or {@code null} to scan every project
+     * @return where the next scan should start, or {@code null} if every repository has been listed
+     */
+    public Integer scan(String projectKey, int start, int limit, Listener listener) throws IOException {
+        CompletionService<RepositoryHealth> completionService = new ExecutorCompletionService<RepositoryHealth>(executor);
+        Set<Future<RepositoryHealth>> inFlight = new HashSet<Future<RepositoryHealth>>();
+        Integer nextStart = null;
+        try {
+            int listed = 0;
+            while (listed < limit) {
+                PageRequest request = new PageRequestImpl(start + listed, Math.min(PAGE_SIZE, limit - listed));
+                // the repositories are listed with the permissions of the caller, so only visible ones are reported
+                Page<? extends Repository> page = projectKey == null ? repositoryService.findAll(request) :
+                        repositoryService.findByProjectKey(projectKey, request);
+                int size = 0;
+                for (Repository repository : page.getValues()) {
+                    if (inFlight.size() >= threads) {
+                        report(take(completionService, inFlight), listener);
+                    }
+                    inFlight.add(completionService.submit(new Evaluation(repository)));
+                    size++;
+                }
+                listed += size;
+                if (page.getIsLastPage() || size == 0) {
+                    nextStart = null;
+                    break;
+                }
+                nextStart = start + listed;
+            }
+            while (!inFlight.isEmpty()) {
+                report(take(completionService, inFlight), listener);
+            }
+        } finally {
+            for (Future<RepositoryHealth> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        return nextStart;
+    }
+
+    private static void report(RepositoryHealth health, Listener listener) throws IOException {
+        if (health != null) {
+            listener.onResult(health);
+        }
+    }
+
+    private static RepositoryHealth take(CompletionService<RepositoryHealth> completionService,
+                                         Set<Future<RepositoryHealth>> inFlight) throws IOException {
+        try {
+            Future<RepositoryHealth> done = completionService.take();
+            inFlight.remove(done);
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning repositories");
+        } catch (ExecutionException e) {
+            // evaluations report their own failures, so this is an Error
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the health of the repository, or {@code null} if neither hook is enabled on it
+     */
+    private RepositoryHealth evaluate(Repository repository) throws Exception {
+        HookSettings settings = getHookSettings(repository);
+        if (settings == null) {
+            return null;
+        }
+        Branch branch = repositoryMetadataService.getDefaultBranch(repository);
+        if (branch == null) {
+            return new RepositoryHealth(repository, null, null, null);
+        }
+        String head = branch.getLatestChangeset();
+        // an empty branch has no builds to break
+        AbstractRejectHook.BranchState state = head == null ? AbstractRejectHook.BranchState.UNDEFINED :
+                branchStateResolver.evaluate(repository, branch.getId(), head, settings);
+        return new RepositoryHealth(repository, branch.getDisplayId(), state, null);
+    }
+
+    /**
+     * @return the settings of the push hook if it is enabled on the repository, else those of the merge check if
+     *         it is, or {@code null} if neither is
+     */
+    private HookSettings getHookSettings(final Repository repository) throws Exception {
+        Callable<HookSettings> read = new Callable<HookSettings>() {
+            @Override
+            public HookSettings call() {
+                for (String key : new String[]{AbstractRejectHook.PUSH_HOOK_KEY, AbstractRejectHook.MERGE_HOOK_KEY}) {
+                    RepositoryHook hook = repositoryHookService.getByKey(repository, key);
+                    if (hook != null && hook.isEnabled()) {
+                        return HookSettings.of(repositoryHookService.getSettings(repository, key));
+                    }
+                }
+                return null;
+            }
+        };
+        if (securityService == null) {
+            return read.call();
+        }
+        // the settings of a hook are only visible to the administrators of its repository, so just that one is granted
+        return securityService.withPermission(repository, Permission.REPO_ADMIN, "Reading the settings of the broken build hooks")
+                .call(new Operation<HookSettings, Exception>() {
+                    @Override
+                    public HookSettings perform() throws Exception {
+                        return read.call();
+                    }
+                });
+    }
+
+    private class Evaluation implements Callable<RepositoryHealth> {
+        private final Repository repository;
+
+        private Evaluation(Repository repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public RepositoryHealth call() {
+            try {
+                return statusLookupExecutor.callWithRepositoryAccess(new Callable<RepositoryHealth>() {
+                    @Override
+                    public RepositoryHealth call() throws Exception {
+                        return evaluate(repository);
+                    }
+                });
+            } catch (Exception e) {
+                // one repository that cannot be evaluated, such as an empty one, does not fail the whole scan
+                return new RepositoryHealth(repository, null, null, e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The state of the default branch of a repository. Repositories without a default branch have neither a branch
+     * nor a state, and those that could not be evaluated have an error instead.
+     */
+    public static class RepositoryHealth {
+        final Repository repository;
+        final String branch;
+        final AbstractRejectHook.BranchState state;
+        final String error;
+
+        RepositoryHealth(Repository repository, String branch, AbstractRejectHook.BranchState state, String error) {
+            this.repository = repository;
+            this.branch = branch;
+            this.state = state;
+            this.error = error;
+        }
+
+        public boolean isBroken() {
+            return state != null && state.state == AbstractRejectHook.BuildState.FAILED;
+        }
+    }
+
+    public interface Listener {
+        void onResult(RepositoryHealth health) throws IOException;
+    }
+}
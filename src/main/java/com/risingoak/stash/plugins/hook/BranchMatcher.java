@@ -0,0 +1,82 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches branch refs against the protected branch patterns of a repository, such as {@code main} or
+ * {@code release/*}. A {@code *} matches within a single path segment and {@code **} matches across segments.
+ * <p/>
+ * Patterns without wildcards are looked up in a set and the rest are compiled once into a single regular
+ * expression, so filtering the hundreds of ref changes of a mirror push stays cheap.
+ */
+public class BranchMatcher {
+    public static final String BRANCH_PREFIX = "refs/heads/";
+
+    public static final BranchMatcher NONE = new BranchMatcher("");
+
+    private final Set<String> names = new HashSet<String>();
+    private final Pattern pattern;
+
+    public BranchMatcher(String patterns) {
+        StringBuilder regex = new StringBuilder();
+        for (String branchPattern : patterns.split("[,\\s]+")) {
+            if (branchPattern.startsWith(BRANCH_PREFIX)) {
+                branchPattern = branchPattern.substring(BRANCH_PREFIX.length());
+            }
+            if (branchPattern.length() == 0) {
+                continue;
+            }
+            if (branchPattern.indexOf('*') < 0) {
+                names.add(branchPattern);
+                continue;
+            }
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(toRegex(branchPattern));
+        }
+        pattern = regex.length() == 0 ? null : Pattern.compile(regex.toString());
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty() && pattern == null;
+    }
+
+    /**
+     * @param refId a fully qualified ref, such as {@code refs/heads/release/1.0}
+     * @return whether the ref is a branch matching one of the patterns
+     */
+    public boolean matches(String refId) {
+        if (refId == null || !refId.startsWith(BRANCH_PREFIX)) {
+            return false;
+        }
+        String branch = refId.substring(BRANCH_PREFIX.length());
+        return names.contains(branch) || (pattern != null && pattern.matcher(branch).matches());
+    }
+
+    private static String toRegex(String branchPattern) {
+        StringBuilder regex = new StringBuilder("(?:");
+        int start = 0;
+        for (int i = 0; i < branchPattern.length(); i++) {
+            if (branchPattern.charAt(i) != '*') {
+                continue;
+            }
+            if (i > start) {
+                regex.append(Pattern.quote(branchPattern.substring(start, i)));
+            }
+            if (i + 1 < branchPattern.length() && branchPattern.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            start = i + 1;
+        }
+        if (start < branchPattern.length()) {
+            regex.append(Pattern.quote(branchPattern.substring(start)));
+        }
+        return regex.append(')').toString();
+    }
+}
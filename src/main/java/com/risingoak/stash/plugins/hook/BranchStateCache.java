@@ -0,0 +1,481 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the aggregated {@link AbstractRejectHook.BranchState} of recently inspected branch heads, along with the
+ * build state of every commit that was looked up to compute it.
+ * <p/>
+ * Entries are keyed by repository, inspection settings and head commit, so a branch that moves simply stops hitting
+ * its old entry. When a build status is posted for a commit, only that commit is forgotten and the verdicts depending
+ * on it are marked stale; the next lookup re-resolves that single commit instead of the whole window.
+ * <p/>
+ * In a cluster the commit states are kept in the shared {@link VerdictStore} instead of in memory, and a cached
+ * verdict is only returned while the states it was computed from are still in the store, so a build status set
+ * through another node invalidates it here too. The store is only read and written outside the lock of the cache,
+ * a whole window at a time.
+ */
+public class BranchStateCache implements InitializingBean, DisposableBean {
+    public static final int DEFAULT_MAX_BRANCHES = 1000;
+    public static final int DEFAULT_MAX_COMMITS = 10000;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+
+    private final EventPublisher eventPublisher;
+    private final VerdictStore store;
+    private final long maxAge;
+    private final Map<String, BranchEntry> branches;
+    private final Map<String, CommitEntry> commits;
+    private final Map<String, Set<String>> branchesByCommit = new HashMap<String, Set<String>>();
+    private final Set<String> policyKeys = new HashSet<String>();
+    private final ConcurrentMap<String, FutureTask<AbstractRejectHook.BranchState>> loading =
+            new ConcurrentHashMap<String, FutureTask<AbstractRejectHook.BranchState>>();
+    private long invalidations;
+
+    public BranchStateCache(EventPublisher eventPublisher) {
+        this(eventPublisher, DEFAULT_MAX_BRANCHES, DEFAULT_MAX_COMMITS, DEFAULT_MAX_AGE, null);
+    }
+
+    public BranchStateCache(EventPublisher eventPublisher, ClusterVerdictStore clusterVerdictStore) {
+        this(eventPublisher, DEFAULT_MAX_BRANCHES, DEFAULT_MAX_COMMITS, DEFAULT_MAX_AGE, clusterVerdictStore.ifEnabled());
+    }
+
+    BranchStateCache(EventPublisher eventPublisher, VerdictStore store) {
+        this(eventPublisher, DEFAULT_MAX_BRANCHES, DEFAULT_MAX_COMMITS, DEFAULT_MAX_AGE, store);
+    }
+
+    BranchStateCache(EventPublisher eventPublisher, int maxBranches, int maxCommits, long maxAge) {
+        this(eventPublisher, maxBranches, maxCommits, maxAge, null);
+    }
+
+    /**
+     * @param store where to share commit states with the other nodes of a cluster, or {@code null} on a single node
+     */
+    BranchStateCache(EventPublisher eventPublisher, final int maxBranches, final int maxCommits, long maxAge, VerdictStore store) {
+        this.eventPublisher = eventPublisher;
+        this.store = store;
+        this.maxAge = maxAge;
+        this.branches = new LinkedHashMap<String, BranchEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BranchEntry> eldest) {
+                if (size() > maxBranches) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.commits = new LinkedHashMap<String, CommitEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CommitEntry> eldest) {
+                return size() > maxCommits;
+            }
+        };
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+    }
+
+    /**
+     * @return the cached verdict for the branch head, or {@code null} if it is unknown or stale
+     */
+    public AbstractRejectHook.BranchState getVerdict(Repository repository, HookSettings settings, String head) {
+        BranchEntry entry;
+        AbstractRejectHook.BranchState verdict;
+        synchronized (this) {
+            entry = getBranchEntry(key(repository, settings, head));
+            verdict = entry == null ? null : entry.verdict;
+        }
+        return verdict == null || !isCurrent(entry) ? null : verdict;
+    }
+
+    /**
+     * Runs {@code loader} to compute the state of the branch head, unless another thread is already computing it,
+     * in which case that computation is waited for and shared. This keeps a burst of merge checks against the same
+     * target branch down to a single history walk.
+     */
+    public AbstractRejectHook.BranchState load(Repository repository, HookSettings settings, String head,
+                                               Callable<AbstractRejectHook.BranchState> loader) {
+        String key = key(repository, settings, head);
+        FutureTask<AbstractRejectHook.BranchState> task = new FutureTask<AbstractRejectHook.BranchState>(loader);
+        FutureTask<AbstractRejectHook.BranchState> existing = loading.putIfAbsent(key, task);
+        if (existing == null) {
+            existing = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the state of " + head, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the commits last inspected for the branch head, with the states that are still known filled in, or
+     *         {@code null} if the head has not been inspected recently
+     */
+    CommitWindow getWindow(Repository repository, HookSettings settings, String head) {
+        BranchEntry entry;
+        synchronized (this) {
+            entry = getBranchEntry(key(repository, settings, head));
+        }
+        if (entry == null) {
+            return null;
+        }
+        CommitWindow window = new CommitWindow(entry.ids, entry.displayIds);
+        window.policy = settings.getAggregationPolicy();
+        fillKnownStates(window);
+        return window;
+    }
+
+    /**
+     * Fills in the states of the commits in the window whose build state is already known under the aggregation
+     * policy of the window.
+     */
+    void fillKnownStates(CommitWindow window) {
+        if (store != null) {
+            AbstractRejectHook.BuildState[] stored = getStoredStates(store, window.ids, window.size(), window.policy);
+            for (int i = 0; i < window.size(); i++) {
+                if (window.states[i] == null) {
+                    window.states[i] = stored[i];
+                }
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (int i = 0; i < window.size(); i++) {
+                if (window.states[i] == null) {
+                    CommitEntry entry = commits.get(commitKey(window.ids[i], window.policy));
+                    if (entry != null && !isExpired(entry.created, now)) {
+                        window.states[i] = entry.state;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a token to pass to {@link #put} so that results computed concurrently with a build status change
+     *         are not cached
+     */
+    public synchronized long getGeneration() {
+        return invalidations;
+    }
+
+    void put(Repository repository, HookSettings settings, String head, CommitWindow window,
+             AbstractRejectHook.BranchState verdict, long generation) {
+        rememberStates(window, generation);
+        synchronized (this) {
+            if (generation == invalidations) {
+                putBranch(repository, settings, head, window, verdict);
+            }
+        }
+    }
+
+    private void putBranch(Repository repository, HookSettings settings, String head, CommitWindow window,
+                           AbstractRejectHook.BranchState verdict) {
+        long now = System.currentTimeMillis();
+        String key = key(repository, settings, head);
+        BranchEntry previous = branches.remove(key);
+        if (previous != null) {
+            unindex(key, previous);
+        }
+        AbstractRejectHook.BuildState[] states = window.states.clone();
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != null && !window.policy.isKept(states[i])) {
+                states[i] = null;
+            }
+        }
+        BranchEntry entry = new BranchEntry(window.ids, window.displayIds, states, window.policy,
+                window.policy.isKept(verdict.state) ? verdict : null, now);
+        branches.put(key, entry);
+        for (String id : entry.ids) {
+            Set<String> keys = branchesByCommit.get(id);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                branchesByCommit.put(id, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Remembers the known build states of the window without caching a verdict for any head. States that may
+     * change by themselves under the policy of the window are not remembered.
+     */
+    void rememberStates(CommitWindow window, long generation) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (generation != invalidations) {
+                return;
+            }
+            if (!window.policy.isDefault()) {
+                policyKeys.add(window.policy.getKey());
+            }
+            if (store == null) {
+                for (int i = 0; i < window.size(); i++) {
+                    AbstractRejectHook.BuildState state = window.states[i];
+                    if (state != null && window.policy.isKept(state)) {
+                        commits.put(commitKey(window.ids[i], window.policy), new CommitEntry(state, now));
+                    }
+                }
+                return;
+            }
+        }
+        Map<String, AbstractRejectHook.BuildState> kept = new LinkedHashMap<String, AbstractRejectHook.BuildState>();
+        for (int i = 0; i < window.size(); i++) {
+            AbstractRejectHook.BuildState state = window.states[i];
+            if (state != null && window.policy.isKept(state)) {
+                kept.put(VerdictStore.STATE_PREFIX + window.ids[i], state);
+            }
+        }
+        if (kept.isEmpty()) {
+            return;
+        }
+        Map<String, String> stored = store.getAll(kept.keySet());
+        Map<String, String> values = new HashMap<String, String>();
+        for (Map.Entry<String, AbstractRejectHook.BuildState> state : kept.entrySet()) {
+            values.put(state.getKey(), withState(stored.get(state.getKey()), window.policy, state.getValue()));
+        }
+        store.putAll(values);
+        // a build status set while writing may have been overwritten, so the states just written are dropped again
+        if (generation != getGeneration()) {
+            for (String key : values.keySet()) {
+                store.remove(key);
+            }
+        }
+    }
+
+    public void invalidateCommit(String commitId) {
+        synchronized (this) {
+            invalidations++;
+            commits.remove(commitId);
+            for (String policyKey : policyKeys) {
+                commits.remove(commitId + "~" + policyKey);
+            }
+            Set<String> keys = branchesByCommit.get(commitId);
+            if (keys != null) {
+                for (String key : keys) {
+                    BranchEntry entry = branches.get(key);
+                    if (entry != null) {
+                        entry.verdict = null;
+                    }
+                }
+            }
+        }
+        if (store != null) {
+            store.remove(VerdictStore.STATE_PREFIX + commitId);
+        }
+    }
+
+    public synchronized void invalidateHead(Repository repository, String head) {
+        Set<String> keys = branchesByCommit.get(head);
+        if (keys == null) {
+            return;
+        }
+        String prefix = repository.getId() + ":";
+        String suffix = ":" + head;
+        for (String key : new ArrayList<String>(keys)) {
+            BranchEntry entry = key.startsWith(prefix) && key.endsWith(suffix) ? branches.remove(key) : null;
+            if (entry != null) {
+                unindex(key, entry);
+            }
+        }
+    }
+
+    @EventListener
+    public void onBuildStatusSet(BuildStatusSetEvent event) {
+        invalidateCommit(event.getChangesetId());
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        for (RefChange refChange : event.getRefChanges()) {
+            invalidateHead(event.getRepository(), refChange.getFromHash());
+        }
+    }
+
+    private BranchEntry getBranchEntry(String key) {
+        BranchEntry entry = branches.get(key);
+        if (entry != null && isExpired(entry.created, System.currentTimeMillis())) {
+            branches.remove(key);
+            unindex(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return whether the states the entry was computed from are still the known ones, which on a single node they
+     *         always are since invalidating a commit invalidates the entries that depend on it
+     */
+    private boolean isCurrent(BranchEntry entry) {
+        if (store == null) {
+            return true;
+        }
+        AbstractRejectHook.BuildState[] stored = getStoredStates(store, entry.ids, entry.ids.length, entry.policy);
+        for (int i = 0; i < entry.ids.length; i++) {
+            if (entry.states[i] != null && entry.states[i] != stored[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the key of the state of a commit in the local cache; states decided under other policies than the
+     *         default are kept apart, and all of them are invalidated together
+     */
+    private static String commitKey(String commitId, AggregationPolicy policy) {
+        return policy.isDefault() ? commitId : commitId + "~" + policy.getKey();
+    }
+
+    /**
+     * @return the states in the store of the first {@code length} commits, in a single call to the store
+     */
+    static AbstractRejectHook.BuildState[] getStoredStates(VerdictStore store, String[] ids, int length, AggregationPolicy policy) {
+        List<String> keys = new ArrayList<String>(length);
+        for (int i = 0; i < length; i++) {
+            keys.add(VerdictStore.STATE_PREFIX + ids[i]);
+        }
+        Map<String, String> stored = store.getAll(keys);
+        AbstractRejectHook.BuildState[] states = new AbstractRejectHook.BuildState[length];
+        for (int i = 0; i < length; i++) {
+            states[i] = getState(stored.get(keys.get(i)), policy);
+        }
+        return states;
+    }
+
+    /**
+     * A commit has a single entry in the store, holding its state under every policy it has been decided with, so
+     * that removing the entry invalidates them all on every node. It is stored as {@code STATE key=STATE ...},
+     * where the state without a key is the one under the default policy.
+     */
+    static AbstractRejectHook.BuildState getState(String value, AggregationPolicy policy) {
+        if (value == null) {
+            return null;
+        }
+        for (String token : value.split(" ")) {
+            int separator = token.indexOf('=');
+            if (separator < 0 ? policy.isDefault() : token.substring(0, separator).equals(policy.getKey())) {
+                return parseState(token.substring(separator + 1));
+            }
+        }
+        return null;
+    }
+
+    static String withState(String value, AggregationPolicy policy, AbstractRejectHook.BuildState state) {
+        StringBuilder updated = new StringBuilder(policy.isDefault() ? state.name() : policy.getKey() + "=" + state.name());
+        if (value != null) {
+            for (String token : value.split(" ")) {
+                int separator = token.indexOf('=');
+                boolean same = separator < 0 ? policy.isDefault() : token.substring(0, separator).equals(policy.getKey());
+                if (!same && token.length() > 0) {
+                    updated.append(' ').append(token);
+                }
+            }
+        }
+        return updated.toString();
+    }
+
+    static AbstractRejectHook.BuildState parseState(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return AbstractRejectHook.BuildState.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void unindex(String key, BranchEntry entry) {
+        for (String id : entry.ids) {
+            Set<String> keys = branchesByCommit.get(id);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    branchesByCommit.remove(id);
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(long created, long now) {
+        return now - created > maxAge;
+    }
+
+    private static String key(Repository repository, HookSettings settings, String head) {
+        return repository.getId() + ":" + settings.getCacheKey() + ":" + head;
+    }
+
+    private static class BranchEntry {
+        private final String[] ids;
+        private final String[] displayIds;
+        private final AbstractRejectHook.BuildState[] states;
+        private final AggregationPolicy policy;
+        private final long created;
+        private AbstractRejectHook.BranchState verdict;
+
+        private BranchEntry(String[] ids, String[] displayIds, AbstractRejectHook.BuildState[] states, AggregationPolicy policy,
+                            AbstractRejectHook.BranchState verdict, long created) {
+            this.ids = ids;
+            this.displayIds = displayIds;
+            this.states = states;
+            this.policy = policy;
+            this.verdict = verdict;
+            this.created = created;
+        }
+    }
+
+    private static class CommitEntry {
+        private final AbstractRejectHook.BuildState state;
+        private final long created;
+
+        private CommitEntry(AbstractRejectHook.BuildState state, long created) {
+            this.state = state;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recomputes the verdict of protected branches in the background when a build status is set on one of the commits
+ * they were decided on, or when they are pushed to, so the next push or merge check finds it in the
+ * {@link BranchVerdictIndex} instead of computing it while the client waits.
+ * <p/>
+ * Only branches that have been checked since Stash started are recomputed, with the repository and settings they
+ * were last checked with. Recomputations run one at a time on a bounded queue, and events for a branch that is
+ * already queued collapse into the queued recomputation, so a burst of build results costs one recomputation per
+ * branch. When the queue is full further events are dropped; the affected verdicts were invalidated all the same
+ * and are computed by the next check.
+ */
+public class BranchStatePrewarmer implements BranchStatePrewarmerMBean, InitializingBean, DisposableBean {
+    public static final String ENABLED_PROPERTY = "plugin.broken-build-hook.prewarm.enabled";
+    public static final String QUEUE_PROPERTY = "plugin.broken-build-hook.prewarm.queue";
+
+    public static final int DEFAULT_QUEUE = 100;
+
+    private final BranchStateResolver branchStateResolver;
+    private final BranchStateCache branchStateCache;
+    private final StatusLookupExecutor statusLookupExecutor;
+    private final BranchVerdictIndex branchVerdictIndex;
+    private final HookMetrics hookMetrics;
+    private final EventPublisher eventPublisher;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Recomputation> pending = new HashMap<String, Recomputation>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong recomputations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean enabled;
+
+    public BranchStatePrewarmer(BranchStateResolver branchStateResolver, BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                                BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, EventPublisher eventPublisher,
+                                ApplicationPropertiesService propertiesService) {
+        this(branchStateResolver, branchStateCache, statusLookupExecutor, branchVerdictIndex, hookMetrics, eventPublisher,
+                propertiesService.getPluginProperty(ENABLED_PROPERTY, true), propertiesService.getPluginProperty(QUEUE_PROPERTY, DEFAULT_QUEUE));
+    }
+
+    BranchStatePrewarmer(BranchStateResolver branchStateResolver, BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                         BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, EventPublisher eventPublisher, boolean enabled, int queue) {
+        this.branchStateResolver = branchStateResolver;
+        this.branchStateCache = branchStateCache;
+        this.statusLookupExecutor = statusLookupExecutor;
+        this.branchVerdictIndex = branchVerdictIndex;
+        this.hookMetrics = hookMetrics;
+        this.eventPublisher = eventPublisher;
+        this.enabled = enabled;
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "broken-build-hook-prewarm");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+        hookMetrics.register(this, HookMetrics.getPrewarmerName());
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        hookMetrics.unregister(HookMetrics.getPrewarmerName());
+        executor.shutdownNow();
+    }
+
+    @EventListener
+    public void onBuildStatusSet(BuildStatusSetEvent event) {
+        if (!enabled) {
+            return;
+        }
+        // the cache and the index forget the old state from their own listeners too, but listeners run in no
+        // particular order and the recomputation must not fold the old state back in
+        branchStateCache.invalidateCommit(event.getChangesetId());
+        for (BranchVerdictIndex.IndexedRef ref : branchVerdictIndex.invalidateCommit(event.getChangesetId())) {
+            schedule(ref, null);
+        }
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        for (RefChange refChange : event.getRefChanges()) {
+            if (refChange.getType() == RefChangeType.DELETE) {
+                continue;
+            }
+            BranchVerdictIndex.IndexedRef ref = branchVerdictIndex.getIndexedRef(event.getRepository().getId(), refChange.getRefId());
+            if (ref != null) {
+                schedule(ref, refChange.getToHash());
+            }
+        }
+    }
+
+    /**
+     * Queues a recomputation of the branch, unless one is already queued.
+     *
+     * @param head the new head of the branch, or {@code null} to recompute it at the head it was last checked at
+     */
+    void schedule(BranchVerdictIndex.IndexedRef ref, String head) {
+        requested.incrementAndGet();
+        String key = ref.repository.getId() + ":" + ref.refId;
+        Recomputation recomputation;
+        synchronized (pending) {
+            Recomputation queued = pending.get(key);
+            if (queued != null) {
+                if (head != null) {
+                    queued.head = head;
+                }
+                coalesced.incrementAndGet();
+                return;
+            }
+            recomputation = new Recomputation(key, ref, head);
+            pending.put(key, recomputation);
+        }
+        try {
+            executor.execute(recomputation);
+        } catch (RejectedExecutionException e) {
+            synchronized (pending) {
+                pending.remove(key);
+            }
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            synchronized (pending) {
+                executor.getQueue().clear();
+                pending.clear();
+            }
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public long getRequested() {
+        return requested.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getRecomputations() {
+        return recomputations.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public void reset() {
+        requested.set(0);
+        coalesced.set(0);
+        dropped.set(0);
+        recomputations.set(0);
+        failures.set(0);
+    }
+
+    private class Recomputation implements Runnable {
+        private final String key;
+        private final BranchVerdictIndex.IndexedRef ref;
+        private String head;
+
+        private Recomputation(String key, BranchVerdictIndex.IndexedRef ref, String head) {
+            this.key = key;
+            this.ref = ref;
+            this.head = head;
+        }
+
+        @Override
+        public void run() {
+            final String head;
+            synchronized (pending) {
+                if (pending.get(key) != this) {
+                    // dropped when the prewarmer was disabled
+                    return;
+                }
+                pending.remove(key);
+                head = this.head;
+            }
+            try {
+                statusLookupExecutor.callWithRepositoryAccess(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        recompute(head);
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                // the next push or merge check computes the verdict itself
+                failures.incrementAndGet();
+            }
+        }
+
+        private void recompute(String head) {
+            if (head == null) {
+                BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.get(ref.repository, ref.refId, ref.settings);
+                if (indexed == null) {
+                    return;
+                }
+                head = indexed.head;
+            }
+            branchStateResolver.getBranchState(ref.repository, ref.refId, head, ref.settings);
+            recomputations.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.risingoak.stash.plugins.hook;
+
+/**
+ * The background recomputation of protected branch verdicts. Disabling it drops the queued recomputations, after
+ * which pushes and merge checks compute the verdicts themselves as they would without it.
+ */
+public interface BranchStatePrewarmerMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    int getQueueDepth();
+
+    long getRequested();
+
+    long getCoalesced();
+
+    long getDropped();
+
+    long getRecomputations();
+
+    long getFailures();
+
+    void reset();
+}
@@ -0,0 +1,592 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.build.BuildStats;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.commit.ChangesetsBetweenRequest;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.MinimalChangeset;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequestImpl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Decides the state of a branch from the build statuses of its recent history, for the hooks and for the components
+ * that recompute or report verdicts outside of a push. Known verdicts come from the {@link BranchVerdictIndex} and
+ * the {@link BranchStateCache}, and whatever has to be looked up goes through the {@link StatusLookupExecutor}.
+ */
+public class BranchStateResolver {
+    public static final int STATUS_BATCH_SIZE = 25;
+
+    private final CommitService historyService;
+    private final BuildStatusService buildStatusService;
+    private final BranchStateCache branchStateCache;
+    private final StatusLookupExecutor statusLookupExecutor;
+    private final BranchVerdictIndex branchVerdictIndex;
+    private final HookMetrics hookMetrics;
+
+    public BranchStateResolver(CommitService historyService, BuildStatusService buildStatusService, BranchStateCache branchStateCache,
+                               StatusLookupExecutor statusLookupExecutor, BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics) {
+        this.historyService = historyService;
+        this.buildStatusService = buildStatusService;
+        this.branchStateCache = branchStateCache;
+        this.statusLookupExecutor = statusLookupExecutor;
+        this.branchVerdictIndex = branchVerdictIndex;
+        this.hookMetrics = hookMetrics;
+    }
+
+    /**
+     * Answers the state of the protected branch {@code refId} at {@code head}. When the branch is still at the head
+     * it was last checked at the indexed verdict is returned straight away; when it has only moved forward, just
+     * the new commits are inspected on top of the indexed ones. Anything else goes through the cache.
+     * <p/>
+     * The indexed commits end at the newest decisive one. If that commit is no longer decisive, such as while it is
+     * being rebuilt, the older commits past it decide instead, so the history is walked again in full.
+     * <p/>
+     * Build statuses are looked up for as long as the repository's decision budget allows from now.
+     */
+    AbstractRejectHook.BranchState getBranchState(Repository repository, String refId, String head, HookSettings settings) {
+        return resolveBranchState(repository, refId, head, settings, getDecisionDeadline(settings));
+    }
+
+    /**
+     * Answers the state of the protected branch like {@link #getBranchState(Repository, String, String, HookSettings)},
+     * giving up on the build statuses that are still unknown at {@code deadline}.
+     */
+    AbstractRejectHook.BranchState resolveBranchState(Repository repository, String refId, String head, HookSettings settings,
+                                                      long deadline) {
+        BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.get(repository, refId, settings);
+        CommitWindow window = null;
+        if (indexed != null && head.equals(indexed.head)) {
+            if (indexed.verdict != null) {
+                hookMetrics.forRepository(repository).recordCacheHit();
+                return indexed.verdict;
+            }
+            window = indexed.window;
+        } else if (indexed != null && indexed.isDecisive()) {
+            window = getWindowOnTopOf(repository, indexed, head, settings);
+        }
+
+        AbstractRejectHook.BranchState branchState;
+        if (window != null) {
+            RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+            metrics.recordCacheMiss();
+            metrics.recordCommitsInspected(window.size());
+            long generation = branchStateCache.getGeneration();
+            branchStateCache.fillKnownStates(window);
+            branchState = getAggregatedStatus(window, deadline);
+            // in a cluster the other nodes only trust the indexed verdict while these states are shared
+            branchStateCache.rememberStates(window, generation);
+            if (isCutShort(branchState, window, settings)) {
+                window = new CommitWindow();
+                branchState = walkHistory(repository, head, settings, window, deadline);
+            }
+        } else {
+            branchState = getBranchState(repository, head, settings, deadline);
+            window = branchStateCache.getWindow(repository, settings, head);
+        }
+        if (window != null && !branchState.timedOut) {
+            branchVerdictIndex.put(repository, refId, settings, head, window, branchState);
+        }
+        return branchState;
+    }
+
+    /**
+     * Answers the state of the branch for a report rather than for a push or merge check. Verdicts that are already
+     * known are reused, but whatever has to be computed is neither cached nor indexed, so reporting on a branch
+     * neither evicts the verdicts the hooks depend on nor gets the branch recomputed in the background.
+     */
+    AbstractRejectHook.BranchState evaluate(Repository repository, String refId, String head, HookSettings settings) {
+        BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.get(repository, refId, settings);
+        if (indexed != null && head.equals(indexed.head) && indexed.verdict != null) {
+            return indexed.verdict;
+        }
+        AbstractRejectHook.BranchState cached = branchStateCache.getVerdict(repository, settings, head);
+        if (cached != null) {
+            return cached;
+        }
+        return inspectHistory(repository, head, settings, new CommitWindow(), getDecisionDeadline(settings));
+    }
+
+    /**
+     * @return the time, in milliseconds, by which a push or merge check starting now has to be decided
+     */
+    long getDecisionDeadline(HookSettings settings) {
+        return System.currentTimeMillis() + settings.getMaxDecisionTime(statusLookupExecutor.getTimeout());
+    }
+
+    /**
+     * Answers the state of the protected branch like {@link #getBranchState(Repository, String, String, HookSettings)},
+     * without keeping the calling thread past {@code deadline}. If the state cannot be decided in time the last
+     * verdict of the branch is used when it is recent enough, and the timeout policy of the repository otherwise.
+     */
+    AbstractRejectHook.BranchState getBranchState(final Repository repository, final String refId, final String head,
+                                                  final HookSettings settings, final long deadline) {
+        AbstractRejectHook.BranchState branchState = callBefore(deadline, new Callable<AbstractRejectHook.BranchState>() {
+            @Override
+            public AbstractRejectHook.BranchState call() {
+                return resolveBranchState(repository, refId, head, settings, deadline);
+            }
+        });
+        return branchState == null || branchState.timedOut ? getFallbackState(repository, refId, settings) : branchState;
+    }
+
+    /**
+     * @return the last verdict of the branch, marked as stale, if it is younger than the configured limit, or else
+     *         a timed out verdict following the timeout policy of the repository
+     */
+    AbstractRejectHook.BranchState getFallbackState(Repository repository, String refId, HookSettings settings) {
+        RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+        AbstractRejectHook.BranchState last = branchVerdictIndex.getLastVerdict(repository, refId, settings, settings.getMaxVerdictAge());
+        if (last != null) {
+            metrics.recordStaleVerdict();
+            return last.stale();
+        }
+        metrics.recordTimeout();
+        return AbstractRejectHook.BranchState.timedOut(settings.isFailOpen(statusLookupExecutor.isFailOpen()) ? AbstractRejectHook.BuildState.UNDEFINED : AbstractRejectHook.BuildState.INPROGRESS);
+    }
+
+    /**
+     * Runs {@code task} away from the calling thread, waiting for it until {@code deadline} at the latest.
+     *
+     * @return the result, or {@code null} if it is not ready in time
+     */
+    <T> T callBefore(long deadline, Callable<T> task) {
+        return statusLookupExecutor.callBefore(deadline, task);
+    }
+
+    /**
+     * @return the commits between the indexed head and {@code head} followed by the indexed ones, or {@code null}
+     *         if {@code head} does not descend from the indexed head or is too far ahead of it
+     */
+    private CommitWindow getWindowOnTopOf(Repository repository, BranchVerdictIndex.IndexedBranch indexed, String head, HookSettings settings) {
+        int limit = settings.getMaxCommitsToInspect() - indexed.window.size();
+        if (limit <= 0) {
+            return null;
+        }
+        ChangesetsBetweenRequest request = new ChangesetsBetweenRequest.Builder(repository)
+                .exclude(indexed.head)
+                .include(head)
+                .build();
+        hookMetrics.getLookups().countGetChangesetsBetween();
+        Page<Changeset> changesets = historyService.getChangesetsBetween(request, new PageRequestImpl(0, limit));
+        if (!changesets.getIsLastPage()) {
+            return null;
+        }
+        CommitWindow window;
+        if (settings.isFirstParent()) {
+            // the commits merged in along the way are not part of the branch's own history
+            window = CommitWindow.ofFirstParents(changesets.getValues(), head, indexed.head);
+            if (window == null) {
+                return null;
+            }
+        } else if (hasParent(changesets, indexed.head)) {
+            window = CommitWindow.of(changesets);
+        } else {
+            return null;
+        }
+        window.policy = settings.getAggregationPolicy();
+        window.append(indexed.window);
+        return window;
+    }
+
+    private static boolean hasParent(Page<Changeset> changesets, String parentId) {
+        for (Changeset changeset : changesets.getValues()) {
+            for (MinimalChangeset parent : changeset.getParents()) {
+                if (parentId.equals(parent.getId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Answers the state of the branch whose head is {@code head} from the cache when possible, only walking the
+     * history and looking up the build statuses that are not already known on a miss, until {@code deadline}.
+     */
+    AbstractRejectHook.BranchState getBranchState(final Repository repository, final String head, final HookSettings settings,
+                                                  final long deadline) {
+        AbstractRejectHook.BranchState cached = branchStateCache.getVerdict(repository, settings, head);
+        if (cached != null) {
+            hookMetrics.forRepository(repository).recordCacheHit();
+            return cached;
+        }
+        hookMetrics.forRepository(repository).recordCacheMiss();
+        return branchStateCache.load(repository, settings, head, new Callable<AbstractRejectHook.BranchState>() {
+            @Override
+            public AbstractRejectHook.BranchState call() {
+                return computeBranchState(repository, head, settings, deadline);
+            }
+        });
+    }
+
+    private AbstractRejectHook.BranchState computeBranchState(Repository repository, String head, HookSettings settings, long deadline) {
+        // another thread may have finished computing it while this one was waiting to start
+        AbstractRejectHook.BranchState cached = branchStateCache.getVerdict(repository, settings, head);
+        if (cached != null) {
+            return cached;
+        }
+
+        CommitWindow window = branchStateCache.getWindow(repository, settings, head);
+        if (window != null) {
+            long generation = branchStateCache.getGeneration();
+            AbstractRejectHook.BranchState branchState = getAggregatedStatus(window, deadline);
+            // adaptive inspection stops at the first decisive commit, which may no longer be decisive
+            if (!isCutShort(branchState, window, settings)) {
+                hookMetrics.forRepository(repository).recordCommitsInspected(window.size());
+                if (!branchState.timedOut) {
+                    branchStateCache.put(repository, settings, head, window, branchState, generation);
+                }
+                return branchState;
+            }
+        }
+        return walkHistory(repository, head, settings, new CommitWindow(), deadline);
+    }
+
+    /**
+     * Walks the history from {@code head} into the empty {@code window}, caching the verdict it comes to.
+     */
+    private AbstractRejectHook.BranchState walkHistory(Repository repository, String head, HookSettings settings, CommitWindow window,
+                                                       long deadline) {
+        long generation = branchStateCache.getGeneration();
+        AbstractRejectHook.BranchState branchState = inspectHistory(repository, head, settings, window, deadline);
+        hookMetrics.forRepository(repository).recordCommitsInspected(window.size());
+        if (!branchState.timedOut) {
+            branchStateCache.put(repository, settings, head, window, branchState, generation);
+        }
+        return branchState;
+    }
+
+    /**
+     * @return whether the window was not decisive, yet holds fewer commits than inspection would look at, so that
+     *         it may have stopped at a commit that was decisive when it was inspected
+     */
+    private static boolean isCutShort(AbstractRejectHook.BranchState branchState, CommitWindow window, HookSettings settings) {
+        return !isDecisive(branchState) && window.size() < settings.getMaxCommitsToInspect();
+    }
+
+    /**
+     * Prepares the evaluation of several protected branches at once, such as for a mirror push. The history of every
+     * distinct head that has no known verdict is walked once, and the build states of all those commits, along with
+     * {@code commits}, are looked up together in bulk, each commit once. The windows are cached so that evaluating
+     * each branch afterwards only folds states that are already known; windows that adaptive inspection would page
+     * past only have their states remembered.
+     *
+     * @param headsByRef the head of each protected branch to evaluate, by ref id
+     * @param commits    further commits whose states are needed, such as the pushed ones
+     * @param deadline   the time by which the push has to be decided
+     * @return the build states looked up, by commit id; empty if bulk lookups are not available or only first-parent
+     *         history is inspected, in which case the branches are evaluated one by one and only share the states
+     *         remembered by the cache
+     */
+    Map<String, AbstractRejectHook.BuildState> prefetchBranchStates(Repository repository, Map<String, String> headsByRef,
+                                                                    Collection<String> commits, HookSettings settings,
+                                                                    long deadline) {
+        Map<String, AbstractRejectHook.BuildState> resolved = new HashMap<String, AbstractRejectHook.BuildState>();
+        if (!statusLookupExecutor.isBulkLookupEnabled() || !settings.getAggregationPolicy().isDefault() || settings.isFirstParent()) {
+            return resolved;
+        }
+        long generation = branchStateCache.getGeneration();
+        Map<String, CommitWindow> windows = new LinkedHashMap<String, CommitWindow>();
+        for (Map.Entry<String, String> ref : headsByRef.entrySet()) {
+            String head = ref.getValue();
+            if (windows.containsKey(head) || isCheap(repository, ref.getKey(), head, settings)) {
+                continue;
+            }
+            CommitWindow window = branchStateCache.getWindow(repository, settings, head);
+            if (window == null) {
+                window = CommitWindow.of(getChangesets(repository, head, 0, settings.getCommitsToInspect()));
+                branchStateCache.fillKnownStates(window);
+            }
+            windows.put(head, window);
+        }
+
+        Set<String> unknown = new LinkedHashSet<String>(commits);
+        for (CommitWindow window : windows.values()) {
+            for (int i = 0; i < window.size(); i++) {
+                if (window.states[i] == null) {
+                    unknown.add(window.ids[i]);
+                }
+            }
+        }
+        try {
+            resolveInBulk(unknown, resolved);
+        } catch (UnsupportedOperationException e) {
+            statusLookupExecutor.disableBulkLookups();
+            return resolved;
+        }
+
+        for (Map.Entry<String, CommitWindow> entry : windows.entrySet()) {
+            CommitWindow window = entry.getValue();
+            for (int i = 0; i < window.size(); i++) {
+                if (window.states[i] == null) {
+                    window.states[i] = resolved.get(window.ids[i]);
+                }
+            }
+            hookMetrics.forRepository(repository).recordCommitsInspected(window.size());
+            AbstractRejectHook.BranchState branchState = getAggregatedStatus(window, deadline);
+            if (branchState.timedOut) {
+                continue;
+            }
+            if (!settings.isAdaptive() || isDecisive(branchState)) {
+                branchStateCache.put(repository, settings, entry.getKey(), window, branchState, generation);
+            } else {
+                branchStateCache.rememberStates(window, generation);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * @return whether the branch can be answered without walking its history: its verdict is known, or it has only
+     *         moved on from an indexed head
+     */
+    private boolean isCheap(Repository repository, String refId, String head, HookSettings settings) {
+        BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.get(repository, refId, settings);
+        if (indexed != null && (head.equals(indexed.head) || indexed.isDecisive())) {
+            return true;
+        }
+        return branchStateCache.getVerdict(repository, settings, head) != null;
+    }
+
+    /**
+     * Looks up the states of all {@code ids} in batches of {@link #STATUS_BATCH_SIZE}.
+     */
+    private void resolveInBulk(Set<String> ids, Map<String, AbstractRejectHook.BuildState> resolved) {
+        Set<String> batch = new LinkedHashSet<String>();
+        Iterator<String> remaining = ids.iterator();
+        while (remaining.hasNext()) {
+            batch.add(remaining.next());
+            if (batch.size() == STATUS_BATCH_SIZE || !remaining.hasNext()) {
+                hookMetrics.getLookups().countGetStats();
+                Map<String, BuildStats> stats = buildStatusService.getStats(batch);
+                for (String id : batch) {
+                    resolved.put(id, getAggregatedStatus(stats.get(id)));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Walks the history from {@code head} into {@code window} and folds it. In adaptive mode the history is paged
+     * through in growing chunks until a decisive build is found or the configured commit or time cap is reached,
+     * so only as much history as needed is read. Build statuses still unknown at {@code deadline} are given up on.
+     */
+    AbstractRejectHook.BranchState inspectHistory(Repository repository, String head, HookSettings settings, CommitWindow window,
+                                                  long deadline) {
+        if (settings.isFirstParent()) {
+            return inspectFirstParentHistory(repository, head, settings, window, deadline);
+        }
+        window.policy = settings.getAggregationPolicy();
+        long giveUpAt = System.currentTimeMillis() + settings.getMaxInspectionTime();
+        int limit = settings.getCommitsToInspect();
+        while (true) {
+            int inspected = window.size();
+            Page<Changeset> changesets = getChangesets(repository, head, inspected, limit);
+            window.append(changesets);
+            branchStateCache.fillKnownStates(window);
+            AbstractRejectHook.BranchState branchState = getAggregatedStatus(window, deadline);
+            if (!settings.isAdaptive() || isDecisive(branchState) || changesets.getIsLastPage() || window.size() == inspected ||
+                    window.size() >= settings.getMaxCommitsToInspect() || System.currentTimeMillis() >= giveUpAt) {
+                return branchState;
+            }
+            limit = Math.min(limit * 2, settings.getMaxCommitsToInspect() - window.size());
+        }
+    }
+
+    /**
+     * Walks the first-parent history from {@code head} into {@code window} and folds it, skipping the commits merged
+     * in along the way, which were built on their own branches if at all. The history is read a page at a time and
+     * only the first parents are followed, up to {@link HookSettings#getMaxCommitsToInspect()} of them or until the
+     * inspection time runs out.
+     * <p/>
+     * The walk stops at the first ancestor that was recently inspected as a head itself, and folds on into as many
+     * of the commits that were inspected for it as the limit leaves room for, with the states still known for them,
+     * so a branch that moves on by a few commits only has those looked up. Only the verdict at {@code head} is
+     * cached, by the caller, so that a later walk can stop there in turn.
+     */
+    AbstractRejectHook.BranchState inspectFirstParentHistory(Repository repository, String head, HookSettings settings, CommitWindow window,
+                                                             long deadline) {
+        window.policy = settings.getAggregationPolicy();
+        long giveUpAt = System.currentTimeMillis() + settings.getMaxInspectionTime();
+        int limit = settings.getMaxCommitsToInspect();
+        List<String> ids = new ArrayList<String>();
+        List<String> displayIds = new ArrayList<String>();
+        Map<String, Changeset> unvisited = new HashMap<String, Changeset>();
+        CommitWindow ancestor = null;
+        int read = 0;
+        boolean lastPage = false;
+        for (String next = head; next != null && ids.size() < limit; ) {
+            if (!ids.isEmpty()) {
+                ancestor = branchStateCache.getWindow(repository, settings, next);
+                if (ancestor != null) {
+                    break;
+                }
+            }
+            Changeset changeset = unvisited.remove(next);
+            while (changeset == null && !lastPage && System.currentTimeMillis() < giveUpAt) {
+                // the merged-in commits interleaved with the first parents are read in further pages as needed
+                Page<Changeset> changesets = getChangesets(repository, head, read, limit - ids.size());
+                int start = read;
+                for (Changeset value : changesets.getValues()) {
+                    unvisited.put(value.getId(), value);
+                    read++;
+                }
+                lastPage = changesets.getIsLastPage() || read == start;
+                changeset = unvisited.remove(next);
+            }
+            if (changeset == null) {
+                break;
+            }
+            ids.add(changeset.getId());
+            displayIds.add(changeset.getDisplayId());
+            Iterator<MinimalChangeset> parents = changeset.getParents().iterator();
+            next = parents.hasNext() ? parents.next().getId() : null;
+        }
+
+        int walked = ids.size();
+        window.append(new CommitWindow(ids.toArray(new String[walked]), displayIds.toArray(new String[walked])));
+        if (ancestor != null) {
+            window.append(ancestor.size() > limit - walked ? ancestor.to(limit - walked) : ancestor);
+        }
+        branchStateCache.fillKnownStates(window);
+        return getAggregatedStatus(window, deadline);
+    }
+
+    Page<Changeset> getChangesets(Repository repository, String head, int start, int limit) {
+        hookMetrics.getLookups().countGetChangesets();
+        return historyService.getChangesets(repository, head, null, new PageRequestImpl(start, limit));
+    }
+
+    private static boolean isDecisive(AbstractRejectHook.BranchState branchState) {
+        return branchState.timedOut || branchState.state == AbstractRejectHook.BuildState.SUCCESSFUL || branchState.state == AbstractRejectHook.BuildState.FAILED;
+    }
+
+    /**
+     * @return the state of the commit under {@code policy}, or {@code null} if it could not be looked up before
+     *         {@code deadline}
+     */
+    AbstractRejectHook.BuildState getAggregatedStatus(final String theHash, final AggregationPolicy policy, long deadline) {
+        return callBefore(deadline, new Callable<AbstractRejectHook.BuildState>() {
+            @Override
+            public AbstractRejectHook.BuildState call() {
+                return getAggregatedStatus(theHash, policy);
+            }
+        });
+    }
+
+    AbstractRejectHook.BuildState getAggregatedStatus(String theHash) {
+        return getAggregatedStatus(theHash, AggregationPolicy.DEFAULT);
+    }
+
+    AbstractRejectHook.BuildState getAggregatedStatus(String theHash, AggregationPolicy policy) {
+        hookMetrics.getLookups().countFindAll();
+        return policy.aggregate(buildStatusService.findAll(theHash).getValues());
+    }
+
+    static AbstractRejectHook.BuildState getAggregatedStatus(BuildStats stats) {
+        if (stats == null) {
+            return AbstractRejectHook.BuildState.UNDEFINED;
+        }
+        if (stats.getFailedCount() > 0) {
+            return AbstractRejectHook.BuildState.FAILED;
+        }
+        if (stats.getInProgressCount() > 0) {
+            return AbstractRejectHook.BuildState.INPROGRESS;
+        }
+        if (stats.getSuccessfulCount() > 0) {
+            return AbstractRejectHook.BuildState.SUCCESSFUL;
+        }
+        return AbstractRejectHook.BuildState.UNDEFINED;
+    }
+
+    /**
+     * Resolves the unknown states of the window starting at {@code from}, in bulk when the status store supports
+     * it and the window uses the default aggregation policy, and otherwise concurrently, giving up on whatever is
+     * still unknown at {@code deadline}.
+     */
+    void resolveBuildStates(final CommitWindow window, int from, long deadline) {
+        if (statusLookupExecutor.isBulkLookupEnabled() && window.policy.isDefault()) {
+            try {
+                resolveBuildStatesInBulk(window, from);
+                return;
+            } catch (UnsupportedOperationException e) {
+                statusLookupExecutor.disableBulkLookups();
+            }
+        }
+        statusLookupExecutor.resolve(window, from, deadline, new StatusLookupExecutor.StatusLookup() {
+            @Override
+            public AbstractRejectHook.BuildState getBuildState(String changesetId) {
+                return getAggregatedStatus(changesetId, window.policy);
+            }
+        });
+    }
+
+    /**
+     * Resolves the unknown states of the window starting at {@code from} with a single bulk lookup covering up to
+     * {@link #STATUS_BATCH_SIZE} commits.
+     */
+    void resolveBuildStatesInBulk(CommitWindow window, int from) {
+        Set<String> ids = new LinkedHashSet<String>();
+        for (int i = from; i < window.size() && ids.size() < STATUS_BATCH_SIZE; i++) {
+            if (window.states[i] == null) {
+                ids.add(window.ids[i]);
+            }
+        }
+        hookMetrics.getLookups().countGetStats();
+        Map<String, BuildStats> stats = buildStatusService.getStats(ids);
+        for (int i = from; i < window.size(); i++) {
+            if (window.states[i] == null && ids.contains(window.ids[i])) {
+                window.states[i] = getAggregatedStatus(stats.get(window.ids[i]));
+            }
+        }
+    }
+
+    AbstractRejectHook.BranchState getAggregatedStatus(Page<Changeset> changesets, long deadline) {
+        return getAggregatedStatus(CommitWindow.of(changesets), deadline);
+    }
+
+    /**
+     * Folds the window newest first, recording the states it looks up in the window. Unknown states are fetched in
+     * batches as the fold reaches them, so commits past the first decisive batch are left unresolved. If the
+     * lookups are not done by {@code deadline}, the end of the decision budget, the configured fail-open or
+     * fail-closed state is returned instead.
+     */
+    AbstractRejectHook.BranchState getAggregatedStatus(CommitWindow window, long deadline) {
+        boolean hasPending = false;
+        for (int i = 0; i < window.size(); i++) {
+            if (window.states[i] == null) {
+                resolveBuildStates(window, i, deadline);
+                if (window.states[i] == null) {
+                    return AbstractRejectHook.BranchState.timedOut(statusLookupExecutor.getTimeoutState());
+                }
+            }
+            AbstractRejectHook.BuildState aggregatedStatus = window.states[i];
+            switch (aggregatedStatus) {
+                case UNDEFINED:
+                    continue;
+                case SUCCESSFUL:
+                    return AbstractRejectHook.BranchState.SUCCESSFUL;
+                case FAILED:
+                    return new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, window.displayIds[i]);
+                case INPROGRESS:
+                    hasPending = true;
+                    break;
+            }
+        }
+        return hasPending ? AbstractRejectHook.BranchState.INPROGRESS : AbstractRejectHook.BranchState.UNDEFINED;
+    }
+}
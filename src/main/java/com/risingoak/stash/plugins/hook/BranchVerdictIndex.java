@@ -0,0 +1,566 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.event.hook.RepositoryHookDisabledEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Remembers, for every protected branch that has been checked, the head it was last checked at and the commits
+ * from that head down to the newest decisive one. A push whose {@code fromHash} is that head is answered without
+ * touching the history or the build status store, and a push on top of it only has to look at the new commits.
+ * <p/>
+ * The index is persisted to the plugin settings, one map per repository, so it survives a restart. It is loaded
+ * lazily the first time a repository is checked, and the build states it loads are treated as unknown until they
+ * have been looked up again, since builds may have finished while Stash was down.
+ * <p/>
+ * In a cluster every branch is also written to the shared {@link VerdictStore}, so a branch checked on one node is
+ * answered on all of them. Entries are then only trusted as far as the commit states they hold are still the ones
+ * in the store, which the {@link BranchStateCache} of whichever node sees a build status change removes.
+ * <p/>
+ * A repository is forgotten, along with its persisted map, when it is deleted or when one of the hooks is disabled
+ * on it, and a branch when it is deleted. The map is only written back when a check leaves a branch in another
+ * state than it found it.
+ */
+public class BranchVerdictIndex implements InitializingBean, DisposableBean {
+    static final String SETTINGS_KEY = "com.risingoak.stash.plugins.stash-broken-build-hook.verdicts.";
+
+    private final EventPublisher eventPublisher;
+    private final PluginSettingsFactory pluginSettingsFactory;
+    private final VerdictStore store;
+    private final ConcurrentMap<Integer, Map<String, Entry>> repositories = new ConcurrentHashMap<Integer, Map<String, Entry>>();
+    private final Map<String, Set<Entry>> entriesByCommit = new HashMap<String, Set<Entry>>();
+    private final Set<Integer> dirty = new HashSet<Integer>();
+    private final ExecutorService writer;
+
+    public BranchVerdictIndex(EventPublisher eventPublisher, PluginSettingsFactory pluginSettingsFactory) {
+        this(eventPublisher, pluginSettingsFactory, (VerdictStore) null);
+    }
+
+    public BranchVerdictIndex(EventPublisher eventPublisher, PluginSettingsFactory pluginSettingsFactory,
+                              ClusterVerdictStore clusterVerdictStore) {
+        this(eventPublisher, pluginSettingsFactory, clusterVerdictStore.ifEnabled());
+    }
+
+    /**
+     * @param store where to share branches with the other nodes of a cluster, or {@code null} on a single node
+     */
+    BranchVerdictIndex(EventPublisher eventPublisher, PluginSettingsFactory pluginSettingsFactory, VerdictStore store) {
+        this.eventPublisher = eventPublisher;
+        this.pluginSettingsFactory = pluginSettingsFactory;
+        this.store = store;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "broken-build-hook-verdict-index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        writer.shutdown();
+    }
+
+    /**
+     * @return the last indexed state of the branch, or {@code null} if it has not been indexed with these settings
+     */
+    IndexedBranch get(Repository repository, String refId, HookSettings settings) {
+        Entry entry = null;
+        if (store != null) {
+            String stored = store.get(branchKey(repository.getId(), refId));
+            entry = stored == null ? null : Entry.parse(stored, true);
+        }
+        IndexedBranch indexed = toIndexedBranch(entry, repository, refId, settings);
+        if (indexed != null && store != null && !refreshStates(indexed.window)) {
+            return new IndexedBranch(indexed.head, indexed.window, null);
+        }
+        return indexed;
+    }
+
+    /**
+     * @return the branch as last indexed on this node, without looking at the store, or {@code null} if it has not
+     *         been indexed here with these settings
+     */
+    IndexedBranch getLocal(Repository repository, String refId, HookSettings settings) {
+        return toIndexedBranch(null, repository, refId, settings);
+    }
+
+    private IndexedBranch toIndexedBranch(Entry entry, Repository repository, String refId, HookSettings settings) {
+        Map<String, Entry> entries = getEntries(repository.getId());
+        synchronized (this) {
+            if (entry == null) {
+                entry = entries.get(refId);
+            }
+            if (entry == null || !entry.settingsKey.equals(settings.getCacheKey())) {
+                return null;
+            }
+            CommitWindow window = new CommitWindow(entry.ids, entry.displayIds);
+            window.policy = settings.getAggregationPolicy();
+            System.arraycopy(entry.states, 0, window.states, 0, entry.states.length);
+            return new IndexedBranch(entry.head, window, entry.verdict);
+        }
+    }
+
+    /**
+     * Replaces the states of the window with the ones currently in the store, read in a single call.
+     *
+     * @return whether they were all still the same
+     */
+    private boolean refreshStates(CommitWindow window) {
+        AbstractRejectHook.BuildState[] stored = BranchStateCache.getStoredStates(store, window.ids, window.size(), window.policy);
+        boolean current = true;
+        for (int i = 0; i < window.size(); i++) {
+            current &= stored[i] == window.states[i];
+            window.states[i] = stored[i];
+        }
+        return current;
+    }
+
+    /**
+     * Indexes the state of the branch at {@code head}, keeping only the commits down to the newest decisive one.
+     */
+    void put(Repository repository, String refId, HookSettings settings, String head, CommitWindow window,
+             AbstractRejectHook.BranchState verdict) {
+        int decisive = window.size() - 1;
+        for (int i = 0; i < window.size(); i++) {
+            if (window.states[i] == AbstractRejectHook.BuildState.SUCCESSFUL || window.states[i] == AbstractRejectHook.BuildState.FAILED) {
+                decisive = i;
+                break;
+            }
+        }
+        int length = decisive + 1;
+        String[] ids = new String[length];
+        String[] displayIds = new String[length];
+        AbstractRejectHook.BuildState[] states = new AbstractRejectHook.BuildState[length];
+        System.arraycopy(window.ids, 0, ids, 0, length);
+        System.arraycopy(window.displayIds, 0, displayIds, 0, length);
+        System.arraycopy(window.states, 0, states, 0, length);
+        // states that may change by themselves are looked up again, along with any verdict they decide
+        boolean kept = verdict == null || window.policy.isKept(verdict.state);
+        for (int i = 0; i < length; i++) {
+            if (states[i] != null && !window.policy.isKept(states[i])) {
+                states[i] = null;
+            }
+        }
+        Entry entry = new Entry(settings.getCacheKey(), head, ids, displayIds, states, kept ? verdict : null);
+        entry.ref = new IndexedRef(repository, refId, settings);
+        entry.lastVerdict = verdict;
+        entry.lastVerdictTime = System.currentTimeMillis();
+
+        Map<String, Entry> entries = getEntries(repository.getId());
+        boolean changed;
+        synchronized (this) {
+            Entry previous = entries.put(refId, entry);
+            changed = previous == null || !previous.isSameAs(entry);
+            unindex(previous);
+            index(entry);
+        }
+        if (store != null) {
+            store.put(branchKey(repository.getId(), refId), entry.format(true));
+        }
+        // most checks find the branch where they left it, which is not worth a write to the plugin settings
+        if (changed) {
+            schedulePersist(repository.getId());
+        }
+    }
+
+    /**
+     * @return the verdict the branch was last indexed with, even if it has since been invalidated or the branch has
+     *         moved on, or {@code null} if there is none younger than {@code maxAge} milliseconds
+     */
+    AbstractRejectHook.BranchState getLastVerdict(Repository repository, String refId, HookSettings settings, long maxAge) {
+        Map<String, Entry> entries = getEntries(repository.getId());
+        synchronized (this) {
+            Entry entry = entries.get(refId);
+            if (entry == null || entry.lastVerdict == null || !entry.settingsKey.equals(settings.getCacheKey()) ||
+                    System.currentTimeMillis() - entry.lastVerdictTime > maxAge) {
+                return null;
+            }
+            return entry.lastVerdict;
+        }
+    }
+
+    /**
+     * Forgets the state of the commit and the verdicts that depended on it. The commits themselves stay indexed so
+     * that the next check only has to look that one commit up again.
+     *
+     * @return the branches whose verdict was forgotten and that have been checked since Stash started
+     */
+    public synchronized List<IndexedRef> invalidateCommit(String commitId) {
+        List<IndexedRef> refs = new ArrayList<IndexedRef>();
+        Set<Entry> entries = entriesByCommit.get(commitId);
+        if (entries == null) {
+            return refs;
+        }
+        for (Entry entry : entries) {
+            entry.verdict = null;
+            if (entry.ref != null) {
+                refs.add(entry.ref);
+            }
+            for (int i = 0; i < entry.ids.length; i++) {
+                if (entry.ids[i].equals(commitId)) {
+                    entry.states[i] = null;
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * @return the branch if it has been checked since Stash started, or {@code null}
+     */
+    synchronized IndexedRef getIndexedRef(int repositoryId, String refId) {
+        Map<String, Entry> entries = repositories.get(repositoryId);
+        Entry entry = entries == null ? null : entries.get(refId);
+        return entry == null ? null : entry.ref;
+    }
+
+    /**
+     * Forgets every branch of the repository, here, in the store and in the plugin settings.
+     */
+    void forgetRepository(final Integer repositoryId) {
+        Map<String, Entry> entries = repositories.remove(repositoryId);
+        if (entries != null) {
+            synchronized (this) {
+                for (Entry entry : entries.values()) {
+                    unindex(entry);
+                }
+            }
+            if (store != null) {
+                for (String refId : entries.keySet()) {
+                    store.remove(branchKey(repositoryId, refId));
+                }
+            }
+        }
+        // queued behind any pending write of the repository, which then finds nothing left to write
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                getPluginSettings().remove(SETTINGS_KEY + repositoryId);
+            }
+        });
+    }
+
+    /**
+     * Forgets a branch that no longer exists, here, in the store and in the plugin settings.
+     */
+    void forgetBranch(final Integer repositoryId, final String refId) {
+        if (store != null) {
+            store.remove(branchKey(repositoryId, refId));
+        }
+        Map<String, Entry> entries = repositories.get(repositoryId);
+        if (entries != null) {
+            synchronized (this) {
+                Entry entry = entries.remove(refId);
+                if (entry == null) {
+                    return;
+                }
+                unindex(entry);
+            }
+            schedulePersist(repositoryId);
+            return;
+        }
+        // the repository has not been checked since Stash started, so only its persisted map may hold the branch
+        writer.execute(new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                if (repositories.containsKey(repositoryId)) {
+                    forgetBranch(repositoryId, refId);
+                    return;
+                }
+                PluginSettings pluginSettings = getPluginSettings();
+                Object stored = pluginSettings.get(SETTINGS_KEY + repositoryId);
+                if (!(stored instanceof Map) || !((Map<String, String>) stored).containsKey(refId)) {
+                    return;
+                }
+                Map<String, String> values = new HashMap<String, String>((Map<String, String>) stored);
+                values.remove(refId);
+                if (values.isEmpty()) {
+                    pluginSettings.remove(SETTINGS_KEY + repositoryId);
+                } else {
+                    pluginSettings.put(SETTINGS_KEY + repositoryId, values);
+                }
+            }
+        });
+    }
+
+    @EventListener
+    public void onBuildStatusSet(BuildStatusSetEvent event) {
+        invalidateCommit(event.getChangesetId());
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        for (RefChange refChange : event.getRefChanges()) {
+            if (refChange.getType() == RefChangeType.DELETE) {
+                forgetBranch(event.getRepository().getId(), refChange.getRefId());
+            }
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        forgetRepository(event.getRepository().getId());
+    }
+
+    @EventListener
+    public void onHookDisabled(RepositoryHookDisabledEvent event) {
+        if (event.getRepositoryHookKey().startsWith(AbstractRejectHook.PLUGIN_KEY + ":")) {
+            forgetRepository(event.getRepository().getId());
+        }
+    }
+
+    private Map<String, Entry> getEntries(Integer repositoryId) {
+        Map<String, Entry> entries = repositories.get(repositoryId);
+        if (entries == null) {
+            entries = load(repositoryId);
+            Map<String, Entry> existing = repositories.putIfAbsent(repositoryId, entries);
+            if (existing != null) {
+                return existing;
+            }
+            synchronized (this) {
+                for (Entry entry : entries.values()) {
+                    index(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Entry> load(Integer repositoryId) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        Object stored = getPluginSettings().get(SETTINGS_KEY + repositoryId);
+        if (stored instanceof Map) {
+            for (Map.Entry<String, String> value : ((Map<String, String>) stored).entrySet()) {
+                Entry entry = Entry.parse(value.getValue(), false);
+                if (entry != null) {
+                    entries.put(value.getKey(), entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void schedulePersist(final Integer repositoryId) {
+        synchronized (dirty) {
+            if (!dirty.add(repositoryId)) {
+                return;
+            }
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (dirty) {
+                    dirty.remove(repositoryId);
+                }
+                Map<String, Entry> entries = repositories.get(repositoryId);
+                if (entries == null) {
+                    return;
+                }
+                Map<String, String> values = new HashMap<String, String>();
+                synchronized (BranchVerdictIndex.this) {
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        values.put(entry.getKey(), entry.getValue().format(false));
+                    }
+                }
+                getPluginSettings().put(SETTINGS_KEY + repositoryId, values);
+            }
+        });
+    }
+
+    private static String branchKey(Integer repositoryId, String refId) {
+        return VerdictStore.BRANCH_PREFIX + repositoryId + ":" + refId;
+    }
+
+    private PluginSettings getPluginSettings() {
+        return pluginSettingsFactory.createGlobalSettings();
+    }
+
+    private void index(Entry entry) {
+        for (String id : entry.ids) {
+            Set<Entry> entries = entriesByCommit.get(id);
+            if (entries == null) {
+                entries = new HashSet<Entry>();
+                entriesByCommit.put(id, entries);
+            }
+            entries.add(entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        for (String id : entry.ids) {
+            Set<Entry> entries = entriesByCommit.get(id);
+            if (entries != null) {
+                entries.remove(entry);
+                if (entries.isEmpty()) {
+                    entriesByCommit.remove(id);
+                }
+            }
+        }
+    }
+
+    static class IndexedBranch {
+        final String head;
+        final CommitWindow window;
+        final AbstractRejectHook.BranchState verdict;
+
+        private IndexedBranch(String head, CommitWindow window, AbstractRejectHook.BranchState verdict) {
+            this.head = head;
+            this.window = window;
+            this.verdict = verdict;
+        }
+
+        /**
+         * @return whether the indexed commits end with a decisive one, so that newer commits can be folded on top
+         */
+        boolean isDecisive() {
+            AbstractRejectHook.BuildState last = window.size() == 0 ? null : window.states[window.size() - 1];
+            return last == AbstractRejectHook.BuildState.SUCCESSFUL || last == AbstractRejectHook.BuildState.FAILED;
+        }
+    }
+
+    /**
+     * A protected branch along with the repository and settings it was last checked with, which are not persisted.
+     */
+    static class IndexedRef {
+        final Repository repository;
+        final String refId;
+        final HookSettings settings;
+
+        private IndexedRef(Repository repository, String refId, HookSettings settings) {
+            this.repository = repository;
+            this.refId = refId;
+            this.settings = settings;
+        }
+    }
+
+    private static class Entry {
+        private final String settingsKey;
+        private final String head;
+        private final String[] ids;
+        private final String[] displayIds;
+        private final AbstractRejectHook.BuildState[] states;
+        private AbstractRejectHook.BranchState verdict;
+        private IndexedRef ref;
+        private AbstractRejectHook.BranchState lastVerdict;
+        private long lastVerdictTime;
+
+        private Entry(String settingsKey, String head, String[] ids, String[] displayIds,
+                      AbstractRejectHook.BuildState[] states, AbstractRejectHook.BranchState verdict) {
+            this.settingsKey = settingsKey;
+            this.head = head;
+            this.ids = ids;
+            this.displayIds = displayIds;
+            this.states = states;
+            this.verdict = verdict;
+        }
+
+        /**
+         * @return whether the entry holds the same branch state as {@code other}, regardless of when it was checked
+         */
+        private boolean isSameAs(Entry other) {
+            return settingsKey.equals(other.settingsKey) && head.equals(other.head) && Arrays.equals(ids, other.ids) &&
+                    Arrays.equals(displayIds, other.displayIds) && Arrays.equals(states, other.states) &&
+                    isSameVerdict(verdict, other.verdict);
+        }
+
+        private static boolean isSameVerdict(AbstractRejectHook.BranchState verdict, AbstractRejectHook.BranchState other) {
+            if (verdict == null || other == null) {
+                return verdict == other;
+            }
+            return verdict.state == other.state && verdict.timedOut == other.timedOut && verdict.stale == other.stale &&
+                    (verdict.commit == null ? other.commit == null : verdict.commit.equals(other.commit));
+        }
+
+        /**
+         * Serializes the entry as {@code settingsKey head id/displayId/STATE ...}. Unknown states are stored as
+         * {@code -}. With {@code withVerdict} a final {@code !STATE/commit} token holds the verdict, if any.
+         */
+        private String format(boolean withVerdict) {
+            StringBuilder value = new StringBuilder(settingsKey).append(' ').append(head);
+            for (int i = 0; i < ids.length; i++) {
+                value.append(' ').append(ids[i]).append('/').append(displayIds[i]).append('/')
+                        .append(states[i] == null ? "-" : states[i].name());
+            }
+            if (withVerdict && verdict != null) {
+                value.append(" !").append(verdict.state.name()).append('/').append(verdict.commit == null ? "-" : verdict.commit);
+            }
+            return value.toString();
+        }
+
+        /**
+         * Entries persisted to the plugin settings are loaded without their states, since builds may have finished
+         * while Stash was down; the next check looks them up again in a single bulk lookup without walking the
+         * history. Entries shared by the other nodes of a cluster keep their states and verdict, which are checked
+         * against the store before use.
+         */
+        private static Entry parse(String value, boolean withStates) {
+            String[] parts = value.split(" ");
+            if (parts.length < 2) {
+                return null;
+            }
+            List<String> ids = new ArrayList<String>();
+            List<String> displayIds = new ArrayList<String>();
+            List<AbstractRejectHook.BuildState> states = new ArrayList<AbstractRejectHook.BuildState>();
+            AbstractRejectHook.BranchState verdict = null;
+            for (int i = 2; i < parts.length; i++) {
+                String[] commit = parts[i].split("/");
+                if (commit.length != 2 && commit.length != 3) {
+                    return null;
+                }
+                if (commit[0].startsWith("!")) {
+                    AbstractRejectHook.BuildState state = BranchStateCache.parseState(commit[0].substring(1));
+                    if (withStates && state != null) {
+                        verdict = new AbstractRejectHook.BranchState(state, "-".equals(commit[1]) ? null : commit[1]);
+                    }
+                    continue;
+                }
+                if (commit.length != 3) {
+                    return null;
+                }
+                ids.add(commit[0]);
+                displayIds.add(commit[1]);
+                states.add(withStates ? BranchStateCache.parseState(commit[2]) : null);
+            }
+            return new Entry(parts[0], parts[1], ids.toArray(new String[ids.size()]),
+                    displayIds.toArray(new String[displayIds.size()]),
+                    states.toArray(new AbstractRejectHook.BuildState[states.size()]), verdict);
+        }
+    }
+}
@@ -1,52 +1,177 @@
 package com.risingoak.stash.plugins.hook;
 
 import com.atlassian.stash.build.BuildStatusService;
-import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.commit.ChangesetsBetweenRequest;
 import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.content.Changeset;
 import com.atlassian.stash.hook.HookResponse;
 import com.atlassian.stash.hook.repository.PreReceiveRepositoryHook;
 import com.atlassian.stash.hook.repository.RepositoryHookContext;
 import com.atlassian.stash.repository.Branch;
 import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.setting.RepositorySettingsValidator;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.setting.SettingsValidationErrors;
 import com.atlassian.stash.util.Page;
 import com.atlassian.stash.util.PageRequestImpl;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+public class BrokenBuildHook extends AbstractRejectHook implements PreReceiveRepositoryHook, RepositorySettingsValidator {
+    public static final int FIX_SCAN_PAGE_SIZE = 100;
+    public static final long PENDING_PROGRESS_INTERVAL = 10000;
+    public static final long PENDING_RECHECK_INTERVAL = 1000;
+
+    private final PendingBuildWaiter pendingBuildWaiter;
 
-public class BrokenBuildHook extends AbstractRejectHook implements PreReceiveRepositoryHook {
-    public BrokenBuildHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService) {
-        super(repositoryMetadataService, historyService, buildStatusService);
+    public BrokenBuildHook(RefService repositoryMetadataService, CommitService historyService, BranchStateResolver branchStateResolver,
+                           BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, PendingBuildWaiter pendingBuildWaiter,
+                           DecisionTraceLog decisionTraceLog) {
+        super(repositoryMetadataService, historyService, branchStateResolver, branchVerdictIndex, hookMetrics, decisionTraceLog);
+        this.pendingBuildWaiter = pendingBuildWaiter;
     }
 
+    /**
+     * Creates a hook with a resolver of its own.
+     */
+    BrokenBuildHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService,
+                    BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                    BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, PendingBuildWaiter pendingBuildWaiter,
+                    DecisionTraceLog decisionTraceLog) {
+        this(repositoryMetadataService, historyService, new BranchStateResolver(historyService, buildStatusService, branchStateCache,
+                statusLookupExecutor, branchVerdictIndex, hookMetrics), branchVerdictIndex, hookMetrics, pendingBuildWaiter, decisionTraceLog);
+    }
+
+    /**
+     * Creates a hook that does not trace its decisions.
+     */
+    BrokenBuildHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService,
+                    BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                    BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, PendingBuildWaiter pendingBuildWaiter) {
+        this(repositoryMetadataService, buildStatusService, historyService, branchStateCache, statusLookupExecutor,
+                branchVerdictIndex, hookMetrics, pendingBuildWaiter, null);
+    }
+
+    /**
+     * Creates a hook that never waits for pending builds nor traces its decisions.
+     */
+    BrokenBuildHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService,
+                    BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                    BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics) {
+        this(repositoryMetadataService, buildStatusService, historyService, branchStateCache, statusLookupExecutor,
+                branchVerdictIndex, hookMetrics, null, null);
+    }
+
+    /**
+     * Checks every push to a protected branch and rejects the whole push if any of them is rejected, printing the
+     * reason for each. When several protected branches are pushed at once their histories are inspected together,
+     * so commits they share are only looked up once.
+     */
     @Override
     public boolean onReceive(@Nonnull RepositoryHookContext repositoryHookContext, @Nonnull Collection<RefChange> refChanges, @Nonnull HookResponse hookResponse) {
-        RefChange push = getPushToDefaultBranch(repositoryHookContext, refChanges);
-        if (push == null) {
-            return true;
+        long start = System.nanoTime();
+        final Repository repository = repositoryHookContext.getRepository();
+        try {
+            final HookSettings settings = HookSettings.of(repositoryHookContext.getSettings());
+            List<RefChange> pushes = getPushesToProtectedBranches(repositoryHookContext, refChanges, settings);
+            if (pushes.isEmpty()) {
+                return true;
+            }
+
+            final long deadline = branchStateResolver.getDecisionDeadline(settings);
+            Map<String, BuildState> prefetched = null;
+            if (pushes.size() > 1) {
+                final Map<String, String> headsByRef = new LinkedHashMap<String, String>();
+                final Set<String> pushed = new LinkedHashSet<String>();
+                for (RefChange push : pushes) {
+                    if (push.getType() != RefChangeType.ADD) {
+                        headsByRef.put(push.getRefId(), push.getFromHash());
+                    }
+                    pushed.add(push.getToHash());
+                }
+                prefetched = branchStateResolver.callBefore(deadline, new Callable<Map<String, BuildState>>() {
+                    @Override
+                    public Map<String, BuildState> call() {
+                        return branchStateResolver.prefetchBranchStates(repository, headsByRef, pushed, settings, deadline);
+                    }
+                });
+            }
+            if (prefetched == null) {
+                prefetched = Collections.emptyMap();
+            }
+
+            boolean accepted = true;
+            for (RefChange push : pushes) {
+                DecisionTrace.Builder trace = new DecisionTrace.Builder(DecisionTrace.PUSH, repository.getId(), push.getRefId());
+                boolean pushAccepted = checkPush(repository, push, prefetched.get(push.getToHash()), settings, deadline, hookResponse, trace);
+                traceDecision(trace, repository, settings, pushAccepted);
+                accepted &= pushAccepted;
+            }
+            return accepted;
+        } finally {
+            hookMetrics.forRepository(repository).recordDecision(System.nanoTime() - start);
         }
+    }
 
+    /**
+     * @param justPushedStatus the state of the pushed commit if it has already been looked up, or {@code null}
+     * @param deadline         the time by which the push has to be decided, shared by all the refs it updates
+     * @param trace            collects what the decision looked at
+     */
+    private boolean checkPush(Repository repository, RefChange push, BuildState justPushedStatus, HookSettings settings,
+                              long deadline, HookResponse hookResponse, DecisionTrace.Builder trace) {
+        RepositoryMetrics metrics = hookMetrics.forRepository(repository);
         String toHash = push.getToHash();
 
         // if for some reason we happen to have seen the status of the commit
-        BuildState justPushedStatus = getAggregatedStatus(toHash);
+        if (justPushedStatus == null) {
+            justPushedStatus = branchStateResolver.getAggregatedStatus(toHash, settings.getAggregationPolicy(), deadline);
+        }
+        trace.pushed(toHash, justPushedStatus);
         if (justPushedStatus == BuildState.SUCCESSFUL) {
+            metrics.recordVerdict(justPushedStatus);
             return true;
         } else if (justPushedStatus == BuildState.FAILED) {
+            metrics.recordVerdict(justPushedStatus);
             printPushingCommitWithFailedStatusMsg(hookResponse, toHash);
             return false;
         }
+        if (push.getType() == RefChangeType.ADD) {
+            // a new branch has no history of its own yet, so it is as good as an empty one
+            metrics.recordVerdict(BuildState.UNDEFINED);
+            return true;
+        }
 
-        Repository repository = repositoryHookContext.getRepository();
-        BranchState defaultBranchState = getAggregatedStatus(getChangesets(repository, push.getFromHash()));
+        BranchState defaultBranchState = branchStateResolver.getBranchState(repository, push.getRefId(), push.getFromHash(), settings, deadline);
+        if (defaultBranchState.state == BuildState.INPROGRESS && !defaultBranchState.timedOut && !defaultBranchState.stale) {
+            defaultBranchState = waitForPendingBuilds(repository, push, defaultBranchState, settings, hookResponse);
+        }
+        trace.head(push.getFromHash()).verdict(defaultBranchState);
+        metrics.recordVerdict(defaultBranchState.state);
+        if (defaultBranchState.timedOut) {
+            return applyTimeoutPolicy(repository, hookResponse, push, defaultBranchState);
+        } else if (defaultBranchState.stale) {
+            hookResponse.out().format("The builds of branch %s could not be checked in time, using the last known result.\n", push.getRefId());
+        }
         switch (defaultBranchState.state) {
             case INPROGRESS:
                 printTooManyPendingBuilds(hookResponse, push);
                 return false;
             case FAILED:
-                if (isFix(repository, toHash, defaultBranchState.commit)) {
+                if (isFix(repository, push, defaultBranchState.commit, settings)) {
                     hookResponse.out().format("Build is broken at commit %s, but your push claims to fix it.\n", defaultBranchState.commit);
                     return true;
                 } else {
@@ -62,13 +187,128 @@ public class BrokenBuildHook extends AbstractRejectHook implements PreReceiveRep
         }
     }
 
-    private Page<Changeset> getChangesets(Repository repository, String fromHash) {
-        return historyService.getChangesets(repository, fromHash, null, new PageRequestImpl(0, COMMITS_TO_INSPECT));
+    @Override
+    public void validate(@Nonnull Settings settings, @Nonnull SettingsValidationErrors errors, @Nonnull Repository repository) {
+        HookSettings.validate(settings, errors, pendingBuildWaiter == null ? 0 : pendingBuildWaiter.getMaxWait());
+    }
+
+    /**
+     * Scans the pushed commits, newest first, for one claiming to fix {@code commit}. The whole pushed range is read
+     * in a single paged traversal, so a fix under a merge commit is found without fetching commits one by one, and
+     * the scan stops at the first claim or after {@link HookSettings#getMaxFixCommits()} commits.
+     */
+    private boolean isFix(Repository repository, RefChange push, String commit, HookSettings settings) {
+        ChangesetsBetweenRequest.Builder builder = new ChangesetsBetweenRequest.Builder(repository).include(push.getToHash());
+        if (push.getType() != RefChangeType.ADD) {
+            builder.exclude(push.getFromHash());
+        }
+        ChangesetsBetweenRequest request = builder.build();
+        FixMatcher fixMatcher = settings.getFixMatcher();
+        int scanned = 0;
+        while (scanned < settings.getMaxFixCommits()) {
+            int limit = Math.min(FIX_SCAN_PAGE_SIZE, settings.getMaxFixCommits() - scanned);
+            hookMetrics.getLookups().countGetChangesetsBetween();
+            Page<Changeset> changesets = historyService.getChangesetsBetween(request, new PageRequestImpl(scanned, limit));
+            int start = scanned;
+            for (Changeset changeset : changesets.getValues()) {
+                if (fixMatcher.isFix(changeset.getMessage(), commit)) {
+                    return true;
+                }
+                scanned++;
+            }
+            if (changesets.getIsLastPage() || scanned == start) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Holds the push for up to {@link HookSettings#getMaxPendingWait()}, and no longer than the server allows, while
+     * the builds of its branch are running, deciding it again whenever a build status is set on one of the pending
+     * commits. Progress is printed to the pusher in the meantime, so the push does not look stuck.
+     *
+     * @return the state of the branch once its builds have finished, or {@code branchState} if the push cannot wait
+     */
+    private BranchState waitForPendingBuilds(Repository repository, RefChange push, BranchState branchState,
+                                             HookSettings settings, HookResponse hookResponse) {
+        if (pendingBuildWaiter == null) {
+            return branchState;
+        }
+        // settings saved before the server limit was lowered are held to it too
+        long maxWait = Math.min(settings.getMaxPendingWait(), TimeUnit.SECONDS.toMillis(pendingBuildWaiter.getMaxWait()));
+        if (maxWait <= 0) {
+            return branchState;
+        }
+        PendingBuildWaiter.Subscription subscription = pendingBuildWaiter.subscribe(repository, push.getRefId(),
+                getPendingCommits(repository, push, settings));
+        if (subscription == null) {
+            hookResponse.out().format("Too many pushes are already waiting for builds to finish, not waiting for branch %s.\n", push.getRefId());
+            return branchState;
+        }
+        long giveUpAt = System.currentTimeMillis() + maxWait;
+        try {
+            hookResponse.out().format("Builds of branch %s are still running, waiting up to %d seconds for them to finish...\n",
+                    push.getRefId(), TimeUnit.MILLISECONDS.toSeconds(maxWait));
+            hookResponse.out().flush();
+            long remaining = maxWait;
+            long interval = PENDING_PROGRESS_INTERVAL;
+            while (branchState.state == BuildState.INPROGRESS && !branchState.timedOut && remaining > 0) {
+                boolean woken = subscription.await(Math.min(remaining, interval));
+                remaining = giveUpAt - System.currentTimeMillis();
+                if (!woken && interval == PENDING_PROGRESS_INTERVAL && remaining > 0) {
+                    hookResponse.out().format("Still waiting for the builds of branch %s, %d seconds left...\n",
+                            push.getRefId(), TimeUnit.MILLISECONDS.toSeconds(remaining));
+                    hookResponse.out().flush();
+                }
+                // decided again after every heartbeat too, since a status set before subscribing wakes no one
+                branchState = branchStateResolver.getBranchState(repository, push.getRefId(), push.getFromHash(), settings,
+                        branchStateResolver.getDecisionDeadline(settings));
+                subscription.watch(getPendingCommits(repository, push, settings));
+                // the old state may only be forgotten after the waiters are woken, so a wake is followed by a quick
+                // second look
+                interval = woken ? PENDING_RECHECK_INTERVAL : PENDING_PROGRESS_INTERVAL;
+                remaining = giveUpAt - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+        }
+        if (branchState.state != BuildState.INPROGRESS) {
+            hookResponse.out().format("Builds of branch %s finished.\n", push.getRefId());
+        }
+        return branchState;
+    }
+
+    /**
+     * @return the commits of the branch that have no decisive build state yet, as last indexed
+     */
+    private List<String> getPendingCommits(Repository repository, RefChange push, HookSettings settings) {
+        List<String> pending = new ArrayList<String>();
+        BranchVerdictIndex.IndexedBranch indexed = branchVerdictIndex.get(repository, push.getRefId(), settings);
+        if (indexed == null || !push.getFromHash().equals(indexed.head)) {
+            pending.add(push.getFromHash());
+            return pending;
+        }
+        for (int i = 0; i < indexed.window.size(); i++) {
+            BuildState state = indexed.window.states[i];
+            if (state != BuildState.SUCCESSFUL && state != BuildState.FAILED) {
+                pending.add(indexed.window.ids[i]);
+            }
+        }
+        return pending;
     }
 
-    private boolean isFix(Repository repository, String head, String commit) {
-        Changeset mostRecentPushedCommit = historyService.getChangeset(repository, head);
-        return mostRecentPushedCommit.getMessage().contains("fixes " + commit);
+    private boolean applyTimeoutPolicy(Repository repository, HookResponse hookResponse, RefChange push, BranchState branchState) {
+        if (branchState.state == BuildState.UNDEFINED) {
+            hookMetrics.forRepository(repository).recordFailOpen();
+            hookResponse.out().format("The builds of branch %s could not be checked in time, allowing the push.\n", push.getRefId());
+            return true;
+        }
+        hookResponse.err().println();
+        hookResponse.err().format("REJECTED: The builds of branch %s could not be checked in time, wait a couple of minutes and try again.\n", push.getRefId());
+        return false;
     }
 
     private void printPushingCommitWithFailedStatusMsg(HookResponse hookResponse, String toHash) {
@@ -90,13 +330,18 @@ public class BrokenBuildHook extends AbstractRejectHook implements PreReceiveRep
         hookResponse.err().format("'fixes %s'\n", fromHash);
     }
 
-    private RefChange getPushToDefaultBranch(RepositoryHookContext repositoryHookContext, Collection<RefChange> refChanges) {
+    /**
+     * @return the ref changes that push to protected branches, in the order they were pushed; deleting a branch
+     *         pushes nothing to it, so deletions are left out
+     */
+    private List<RefChange> getPushesToProtectedBranches(RepositoryHookContext repositoryHookContext, Collection<RefChange> refChanges, HookSettings settings) {
         Branch defaultBranch = repositoryMetadataService.getDefaultBranch(repositoryHookContext.getRepository());
+        List<RefChange> pushes = new ArrayList<RefChange>();
         for (RefChange refChange : refChanges) {
-            if (refChange.getRefId().equals(defaultBranch.getId())) {
-                return refChange;
+            if (refChange.getType() != RefChangeType.DELETE && settings.isProtected(refChange.getRefId(), defaultBranch.getId())) {
+                pushes.add(refChange);
             }
         }
-        return null;
+        return pushes;
     }
 }
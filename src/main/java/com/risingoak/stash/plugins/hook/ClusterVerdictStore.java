@@ -0,0 +1,87 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheFactory;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link VerdictStore} backed by a cache replicated across the nodes of a Stash Data Center cluster, so that a
+ * verdict computed on one node answers pushes on all of them, and a build status set through one node invalidates
+ * the verdicts depending on it everywhere.
+ * <p/>
+ * The store is only used when {@value #ENABLED_PROPERTY} is set; a single node keeps everything in memory.
+ */
+public class ClusterVerdictStore implements VerdictStore {
+    public static final String ENABLED_PROPERTY = "plugin.broken-build-hook.cache.cluster";
+    public static final String MAX_ENTRIES_PROPERTY = "plugin.broken-build-hook.cache.cluster.max-entries";
+
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    static final String CACHE_NAME = "com.risingoak.stash.plugins.stash-broken-build-hook.verdicts";
+
+    private final Cache<String, String> cache;
+
+    public ClusterVerdictStore(CacheFactory cacheFactory, ApplicationPropertiesService propertiesService) {
+        if (propertiesService.getPluginProperty(ENABLED_PROPERTY, false)) {
+            cache = cacheFactory.getCache(CACHE_NAME, null, new CacheSettingsBuilder()
+                    .remote()
+                    .replicateViaCopy()
+                    .expireAfterWrite(BranchStateCache.DEFAULT_MAX_AGE, TimeUnit.MILLISECONDS)
+                    .maxEntries(propertiesService.getPluginProperty(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES))
+                    .build());
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * @return this store if the cluster mode is enabled, or {@code null} to keep everything in memory
+     */
+    VerdictStore ifEnabled() {
+        return cache == null ? null : this;
+    }
+
+    @Override
+    public String get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * The cache has no bulk operations, so the keys are read one by one, though still outside any lock of the
+     * caller.
+     */
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = cache.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<String, String> values) {
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            cache.put(value.getKey(), value.getValue());
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+}
@@ -0,0 +1,119 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.MinimalChangeset;
+import com.atlassian.stash.util.Page;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commits inspected to decide the state of a branch, newest first, along with the build state resolved so far
+ * for each of them. A {@code null} state means the commit has not been looked up yet. The states are those decided
+ * by the aggregation policy of the window.
+ */
+class CommitWindow {
+    String[] ids;
+    String[] displayIds;
+    AbstractRejectHook.BuildState[] states;
+    AggregationPolicy policy = AggregationPolicy.DEFAULT;
+
+    CommitWindow() {
+        this(new String[0], new String[0]);
+    }
+
+    CommitWindow(String[] ids, String[] displayIds) {
+        this.ids = ids;
+        this.displayIds = displayIds;
+        this.states = new AbstractRejectHook.BuildState[ids.length];
+    }
+
+    static CommitWindow of(Page<Changeset> changesets) {
+        CommitWindow window = new CommitWindow();
+        window.append(changesets);
+        return window;
+    }
+
+    /**
+     * @return the first-parent chain from {@code head} among {@code changesets} down to, but excluding,
+     *         {@code stop}, or {@code null} if the chain leaves the changesets before reaching it
+     */
+    static CommitWindow ofFirstParents(Iterable<Changeset> changesets, String head, String stop) {
+        Map<String, Changeset> byId = new HashMap<String, Changeset>();
+        for (Changeset changeset : changesets) {
+            byId.put(changeset.getId(), changeset);
+        }
+        List<String> ids = new ArrayList<String>();
+        List<String> displayIds = new ArrayList<String>();
+        for (String next = head; !next.equals(stop); ) {
+            Changeset changeset = byId.remove(next);
+            if (changeset == null) {
+                return null;
+            }
+            ids.add(changeset.getId());
+            displayIds.add(changeset.getDisplayId());
+            Iterator<MinimalChangeset> parents = changeset.getParents().iterator();
+            if (!parents.hasNext()) {
+                return null;
+            }
+            next = parents.next().getId();
+        }
+        return new CommitWindow(ids.toArray(new String[ids.size()]), displayIds.toArray(new String[displayIds.size()]));
+    }
+
+    /**
+     * Extends the window with the next (older) page of history, sized up front from the page so the commits are
+     * copied straight into the window.
+     */
+    void append(Page<Changeset> changesets) {
+        int offset = ids.length;
+        grow(offset + changesets.getSize());
+        int size = offset;
+        for (Changeset changeset : changesets.getValues()) {
+            if (size == ids.length) {
+                grow(Math.max(size + 1, size * 2));
+            }
+            ids[size] = changeset.getId();
+            displayIds[size] = changeset.getDisplayId();
+            size++;
+        }
+        if (size < ids.length) {
+            grow(size);
+        }
+    }
+
+    /**
+     * Extends the window with the (older) commits of another window, keeping their known states.
+     */
+    void append(CommitWindow older) {
+        int offset = ids.length;
+        grow(offset + older.size());
+        System.arraycopy(older.ids, 0, ids, offset, older.size());
+        System.arraycopy(older.displayIds, 0, displayIds, offset, older.size());
+        System.arraycopy(older.states, 0, states, offset, older.size());
+    }
+
+    private void grow(int size) {
+        ids = Arrays.copyOf(ids, size);
+        displayIds = Arrays.copyOf(displayIds, size);
+        states = Arrays.copyOf(states, size);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the first {@code length} commits of the window, with their states
+     */
+    CommitWindow to(int length) {
+        CommitWindow prefix = new CommitWindow(Arrays.copyOf(ids, length), Arrays.copyOf(displayIds, length));
+        System.arraycopy(states, 0, prefix.states, 0, length);
+        prefix.policy = policy;
+        return prefix;
+    }
+}
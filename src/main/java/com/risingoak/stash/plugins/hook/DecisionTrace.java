@@ -0,0 +1,144 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * What a single push or merge check to a protected branch looked at and decided: the commits inspected on the
+ * branch with the build state of each, the verdict they folded into and how long deciding took. Apart from the
+ * sequence number {@link DecisionTraceLog} gives a trace when recording it, which is volatile, traces are immutable
+ * once built, so they can be handed to the log and read by other threads without copying.
+ */
+public class DecisionTrace {
+    public static final String PUSH = "push";
+    public static final String MERGE = "merge";
+
+    final long time;
+    final String kind;
+    final int repositoryId;
+    final String refId;
+    final String head;
+    final String pushed;
+    final AbstractRejectHook.BuildState pushedState;
+    final AbstractRejectHook.BuildState verdict;
+    final String verdictCommit;
+    final boolean stale;
+    final boolean timedOut;
+    final boolean accepted;
+    final long micros;
+    final String[] commits;
+    final AbstractRejectHook.BuildState[] states;
+    // set by the log when the trace is recorded, after it was built on another thread
+    volatile long sequence = -1;
+
+    private DecisionTrace(Builder builder, boolean accepted, long micros) {
+        this.time = builder.time;
+        this.kind = builder.kind;
+        this.repositoryId = builder.repositoryId;
+        this.refId = builder.refId;
+        this.head = builder.head;
+        this.pushed = builder.pushed;
+        this.pushedState = builder.pushedState;
+        this.verdict = builder.verdict == null ? null : builder.verdict.state;
+        this.verdictCommit = builder.verdict == null ? null : builder.verdict.commit;
+        this.stale = builder.verdict != null && builder.verdict.stale;
+        this.timedOut = builder.verdict != null && builder.verdict.timedOut;
+        this.accepted = accepted;
+        this.micros = micros;
+        if (builder.window == null) {
+            this.commits = new String[0];
+            this.states = new AbstractRejectHook.BuildState[0];
+        } else {
+            this.commits = builder.window.ids;
+            this.states = builder.window.states;
+        }
+    }
+
+    /**
+     * Writes the trace as a single JSON object, the form it has in the log file and over REST.
+     */
+    void write(JsonWriter writer) throws IOException {
+        writer.beginObject()
+                .name("time").value(time)
+                .name("kind").value(kind)
+                .name("repository").value(repositoryId)
+                .name("ref").value(refId);
+        if (head != null) {
+            writer.name("head").value(head);
+        }
+        if (pushed != null) {
+            writer.name("pushed").value(pushed);
+        }
+        if (pushedState != null) {
+            writer.name("pushedState").value(pushedState.name());
+        }
+        if (verdict != null) {
+            writer.name("verdict").value(verdict.name());
+            if (verdictCommit != null) {
+                writer.name("verdictCommit").value(verdictCommit);
+            }
+            writer.name("stale").value(stale).name("timedOut").value(timedOut);
+        }
+        writer.name("accepted").value(accepted).name("micros").value(micros);
+        writer.name("commits").beginArray();
+        for (int i = 0; i < commits.length; i++) {
+            writer.beginObject().name("id").value(commits[i]);
+            if (states[i] != null) {
+                writer.name("state").value(states[i].name());
+            }
+            writer.endObject();
+        }
+        writer.endArray().endObject();
+    }
+
+    /**
+     * Collects the trace of a decision as it is being made; the decision itself only pays for setting fields.
+     */
+    static class Builder {
+        private final long time = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final String kind;
+        private final int repositoryId;
+        final String refId;
+        String head;
+        private String pushed;
+        private AbstractRejectHook.BuildState pushedState;
+        private AbstractRejectHook.BranchState verdict;
+        private CommitWindow window;
+
+        Builder(String kind, int repositoryId, String refId) {
+            this.kind = kind;
+            this.repositoryId = repositoryId;
+            this.refId = refId;
+        }
+
+        Builder head(String head) {
+            this.head = head;
+            return this;
+        }
+
+        Builder pushed(String pushed, AbstractRejectHook.BuildState pushedState) {
+            this.pushed = pushed;
+            this.pushedState = pushedState;
+            return this;
+        }
+
+        Builder verdict(AbstractRejectHook.BranchState verdict) {
+            this.verdict = verdict;
+            return this;
+        }
+
+        /**
+         * @param window the commits inspected on the branch, which must not change afterwards
+         */
+        Builder window(CommitWindow window) {
+            this.window = window;
+            return this;
+        }
+
+        DecisionTrace build(boolean accepted) {
+            return new DecisionTrace(this, accepted, (System.nanoTime() - start) / 1000);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.google.gson.stream.JsonWriter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the traces of the most recent decisions in a fixed ring, so a disputed rejection can be looked up by
+ * repository, and appends every trace to {@code <home>/log/broken-build-hook/decisions.log}, one JSON object per
+ * line, rotating the file once it reaches its maximum size.
+ * <p/>
+ * Recording claims a slot with a single atomic increment and never waits: the file is written by a background
+ * thread that drains the ring every {@link #DRAIN_INTERVAL} milliseconds. Traces that are overwritten before it gets
+ * to them, because decisions outpace the disk, are counted and skipped rather than holding up a push.
+ */
+public class DecisionTraceLog implements InitializingBean, DisposableBean {
+    public static final String ENABLED_PROPERTY = "plugin.broken-build-hook.trace.enabled";
+    public static final String BUFFER_PROPERTY = "plugin.broken-build-hook.trace.buffer";
+    public static final String FILE_ENABLED_PROPERTY = "plugin.broken-build-hook.trace.file";
+    public static final String MAX_FILE_SIZE_PROPERTY = "plugin.broken-build-hook.trace.file.max-size";
+    public static final String FILES_PROPERTY = "plugin.broken-build-hook.trace.file.count";
+
+    public static final int DEFAULT_BUFFER = 4096;
+    public static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+    public static final int DEFAULT_FILES = 5;
+    public static final long DRAIN_INTERVAL = 1000;
+    static final String FILE_NAME = "decisions.log";
+
+    private final AtomicReferenceArray<DecisionTrace> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final File directory;
+    private final long maxFileSize;
+    private final int files;
+    private final ScheduledExecutorService writer;
+    // only touched while draining
+    private long written;
+    private Writer out;
+    private long fileSize;
+
+    public DecisionTraceLog(ApplicationPropertiesService propertiesService) {
+        this(propertiesService.getPluginProperty(ENABLED_PROPERTY, true) ? propertiesService.getPluginProperty(BUFFER_PROPERTY, DEFAULT_BUFFER) : 0,
+                propertiesService.getPluginProperty(FILE_ENABLED_PROPERTY, true) ?
+                        new File(propertiesService.getHomeDir(), "log" + File.separator + "broken-build-hook") : null,
+                propertiesService.getPluginProperty(MAX_FILE_SIZE_PROPERTY, DEFAULT_MAX_FILE_SIZE),
+                propertiesService.getPluginProperty(FILES_PROPERTY, DEFAULT_FILES));
+    }
+
+    /**
+     * @param buffer    how many of the latest traces to keep, rounded up to a power of two, or {@code 0} not to trace
+     * @param directory where to write the log files, or {@code null} to only keep traces in memory
+     */
+    DecisionTraceLog(int buffer, File directory, long maxFileSize, int files) {
+        int capacity = buffer <= 0 ? 0 : Integer.highestOneBit(Math.max(2, buffer) * 2 - 1);
+        this.ring = new AtomicReferenceArray<DecisionTrace>(capacity);
+        this.mask = capacity - 1;
+        this.directory = capacity == 0 ? null : directory;
+        this.maxFileSize = maxFileSize;
+        this.files = Math.max(1, files);
+        this.writer = this.directory == null ? null : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "broken-build-hook-decision-trace");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (writer != null) {
+            writer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+            drain();
+            close();
+        }
+    }
+
+    /**
+     * @return whether traces are kept at all, so that decisions need not collect them otherwise
+     */
+    public boolean isEnabled() {
+        return ring.length() > 0;
+    }
+
+    public void record(DecisionTrace trace) {
+        if (!isEnabled()) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        trace.sequence = sequence;
+        ring.set((int) (sequence & mask), trace);
+    }
+
+    /**
+     * @return up to {@code limit} of the latest traces of the repository still in the ring, newest first
+     */
+    public List<DecisionTrace> getRecent(int repositoryId, int limit) {
+        List<DecisionTrace> recent = new ArrayList<DecisionTrace>();
+        long last = next.get() - 1;
+        for (long sequence = last; sequence >= 0 && sequence > last - ring.length() && recent.size() < limit; sequence--) {
+            DecisionTrace trace = ring.get((int) (sequence & mask));
+            // slots not yet filled, or already reused by a newer decision, are skipped
+            if (trace != null && trace.sequence == sequence && trace.repositoryId == repositoryId) {
+                recent.add(trace);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * @return how many traces were overwritten before they could be written to the log file
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the traces recorded since the last drain to the log file. Runs on the writer thread, and once more on
+     * shutdown.
+     */
+    synchronized void drain() {
+        long end = next.get();
+        if (end - written > ring.length()) {
+            dropped.addAndGet(end - written - ring.length());
+            written = end - ring.length();
+        }
+        try {
+            for (; written < end; written++) {
+                DecisionTrace trace = ring.get((int) (written & mask));
+                if (trace == null || trace.sequence < written) {
+                    // claimed but not yet filled in, picked up by the next drain
+                    break;
+                } else if (trace.sequence > written) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                write(trace);
+            }
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the traces stay in the ring, and the file is opened again next time
+            close();
+        }
+    }
+
+    private void write(DecisionTrace trace) throws IOException {
+        StringWriter line = new StringWriter();
+        trace.write(new JsonWriter(line));
+        line.write('\n');
+        String text = line.toString();
+        if (out == null) {
+            open();
+        }
+        if (fileSize > 0 && fileSize + text.length() > maxFileSize) {
+            close();
+            rotate();
+            open();
+        }
+        out.write(text);
+        fileSize += text.length();
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, FILE_NAME);
+        fileSize = file.length();
+        out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    /**
+     * Shifts the full log file to {@code decisions.log.1}, and the older ones up by one, dropping the oldest.
+     */
+    private void rotate() {
+        new File(directory, FILE_NAME + "." + (files - 1)).delete();
+        for (int i = files - 2; i >= 1; i--) {
+            new File(directory, FILE_NAME + "." + i).renameTo(new File(directory, FILE_NAME + "." + (i + 1)));
+        }
+        File file = new File(directory, FILE_NAME);
+        if (files > 1) {
+            file.renameTo(new File(directory, FILE_NAME + ".1"));
+        } else {
+            file.delete();
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing more to write to it
+            }
+            out = null;
+        }
+    }
+}
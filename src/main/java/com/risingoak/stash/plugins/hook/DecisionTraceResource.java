@@ -0,0 +1,72 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.google.gson.stream.JsonWriter;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+
+/**
+ * Reports the latest decisions taken on the protected branches of a repository the caller can see, newest first,
+ * so a disputed rejection can be traced back to the commits and build states it was based on:
+ * <pre>
+ * {"decisions":[{"time":1381234567890,"kind":"push","repository":1,"ref":"refs/heads/master","head":"abc123",
+ *   "pushed":"def456","pushedState":"UNDEFINED","verdict":"FAILED","verdictCommit":"abc123","stale":false,
+ *   "timedOut":false,"accepted":false,"micros":1520,"commits":[{"id":"abc123","state":"FAILED"}]},...],
+ *  "dropped":0}
+ * </pre>
+ * Only the decisions still held in memory are reported; older ones are in the decision log file.
+ */
+@Path("/decisions")
+@Produces(MediaType.APPLICATION_JSON)
+public class DecisionTraceResource {
+    public static final int MAX_LIMIT = 1000;
+
+    private final DecisionTraceLog decisionTraceLog;
+    private final RepositoryService repositoryService;
+
+    public DecisionTraceResource(DecisionTraceLog decisionTraceLog, RepositoryService repositoryService) {
+        this.decisionTraceLog = decisionTraceLog;
+        this.repositoryService = repositoryService;
+    }
+
+    @GET
+    public Response getDecisions(@QueryParam("repository") Integer repositoryId, @QueryParam("limit") @DefaultValue("50") int limit) {
+        if (repositoryId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        // only repositories the caller is allowed to see are found
+        Repository repository = repositoryService.getById(repositoryId);
+        if (repository == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final List<DecisionTrace> decisions = decisionTraceLog.getRecent(repository.getId(), Math.max(0, Math.min(limit, MAX_LIMIT)));
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                writeDecisions(decisions, output);
+            }
+        }).build();
+    }
+
+    void writeDecisions(List<DecisionTrace> decisions, OutputStream output) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, "UTF-8"));
+        writer.beginObject().name("decisions").beginArray();
+        for (DecisionTrace decision : decisions) {
+            decision.write(writer);
+        }
+        writer.endArray().name("dropped").value(decisionTraceLog.getDropped()).endObject();
+        writer.flush();
+    }
+}
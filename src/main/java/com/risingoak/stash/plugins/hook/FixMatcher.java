@@ -0,0 +1,62 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the claims in a commit message that it fixes a broken build, such as {@code fixes a1b2c3d} or a
+ * {@code fixes-build: a1b2c3d} trailer. The tokens are configurable and are compiled once, together with the hash
+ * that must follow them, into a single regular expression.
+ * <p/>
+ * A claim names the broken commit by any abbreviation of at least {@link #MIN_HASH_LENGTH} characters or by its full
+ * hash, so it fixes the commit if either of the claimed hash and the commit's display id starts with the other.
+ */
+public class FixMatcher {
+    public static final String DEFAULT_TOKENS = "fixes, fixes-build:";
+    public static final int MIN_HASH_LENGTH = 7;
+
+    public static final FixMatcher DEFAULT = new FixMatcher(DEFAULT_TOKENS);
+
+    private final Pattern pattern;
+
+    public FixMatcher(String tokens) {
+        List<String> alternatives = new ArrayList<String>();
+        for (String token : tokens.split(",")) {
+            token = token.trim();
+            if (token.length() > 0) {
+                alternatives.add(Pattern.quote(token));
+            }
+        }
+        if (alternatives.isEmpty()) {
+            alternatives.add(Pattern.quote("fixes"));
+        }
+        StringBuilder regex = new StringBuilder("(?:^|[^\\w-])(?:");
+        for (int i = 0; i < alternatives.size(); i++) {
+            regex.append(i == 0 ? "" : "|").append(alternatives.get(i));
+        }
+        regex.append(")\\s*([0-9a-fA-F]{").append(MIN_HASH_LENGTH).append(",40})(?![0-9a-zA-Z])");
+        pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @param message   a commit message
+     * @param displayId the display id of the broken commit
+     * @return whether the message claims to fix the commit
+     */
+    public boolean isFix(String message, String displayId) {
+        if (message == null || displayId == null) {
+            return false;
+        }
+        Matcher matcher = pattern.matcher(message);
+        while (matcher.find()) {
+            String hash = matcher.group(1).toLowerCase();
+            String commit = displayId.toLowerCase();
+            if (hash.startsWith(commit) || commit.startsWith(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
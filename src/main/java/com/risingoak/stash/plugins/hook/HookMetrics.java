@@ -0,0 +1,142 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.repository.Repository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Publishes what the hooks spend their time on as MBeans: the calls made to the Stash services under
+ * {@code com.risingoak.stash.plugins.brokenbuildhook:type=Lookups}, and the decision times, verdicts and cache
+ * effectiveness of every repository under {@code type=Repository,repository=<id>}. Other components publish their
+ * own MBeans under the same domain through {@link #register(Object, ObjectName)}.
+ * <p/>
+ * Recording only touches atomic counters, so it is safe to do on every push and merge check. The MBean of a
+ * repository is unregistered when the repository is deleted.
+ */
+public class HookMetrics implements InitializingBean, DisposableBean {
+    public static final String DOMAIN = "com.risingoak.stash.plugins.brokenbuildhook";
+
+    private final EventPublisher eventPublisher;
+    private final MBeanServer mBeanServer;
+    private final LookupMetrics lookups = new LookupMetrics();
+    private final ConcurrentMap<Integer, RepositoryMetrics> repositories = new ConcurrentHashMap<Integer, RepositoryMetrics>();
+
+    public HookMetrics(EventPublisher eventPublisher) {
+        this(eventPublisher, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    HookMetrics(MBeanServer mBeanServer) {
+        this(null, mBeanServer);
+    }
+
+    /**
+     * @param eventPublisher where to hear about deleted repositories, or {@code null} to keep their metrics
+     */
+    HookMetrics(EventPublisher eventPublisher, MBeanServer mBeanServer) {
+        this.eventPublisher = eventPublisher;
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        register(lookups, getLookupsName());
+        if (eventPublisher != null) {
+            eventPublisher.register(this);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (eventPublisher != null) {
+            eventPublisher.unregister(this);
+        }
+        unregister(getLookupsName());
+        for (Integer repositoryId : repositories.keySet()) {
+            unregister(getRepositoryName(repositoryId));
+        }
+        repositories.clear();
+    }
+
+    public LookupMetrics getLookups() {
+        return lookups;
+    }
+
+    public RepositoryMetrics forRepository(Repository repository) {
+        RepositoryMetrics metrics = repositories.get(repository.getId());
+        if (metrics == null) {
+            metrics = new RepositoryMetrics(repository.getId());
+            RepositoryMetrics existing = repositories.putIfAbsent(repository.getId(), metrics);
+            if (existing != null) {
+                return existing;
+            }
+            register(metrics, getRepositoryName(repository.getId()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Forgets the metrics of the repository and unregisters its MBean.
+     */
+    void forgetRepository(int repositoryId) {
+        if (repositories.remove(repositoryId) != null) {
+            unregister(getRepositoryName(repositoryId));
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        forgetRepository(event.getRepository().getId());
+    }
+
+    static ObjectName getLookupsName() {
+        return createName(DOMAIN + ":type=Lookups");
+    }
+
+    static ObjectName getRepositoryName(int repositoryId) {
+        return createName(DOMAIN + ":type=Repository,repository=" + repositoryId);
+    }
+
+    static ObjectName getPrewarmerName() {
+        return createName(DOMAIN + ":type=Prewarmer");
+    }
+
+    private static ObjectName createName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    void register(Object mBean, ObjectName name) {
+        try {
+            if (mBeanServer.isRegistered(name)) {
+                // left behind by a previous instance of the plugin that was not shut down cleanly
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(mBean, name);
+        } catch (JMException e) {
+            // the metrics are still recorded, and a push must never fail because they could not be published
+        }
+    }
+
+    void unregister(ObjectName name) {
+        try {
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // the server is going away with the plugin, nothing left to clean up
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.setting.SettingsValidationErrors;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-repository settings of the hooks, as entered in their configuration form. Repositories that have never
+ * saved the form get {@link #DEFAULT}, which protects the default branch only and inspects the last
+ * {@link AbstractRejectHook#COMMITS_TO_INSPECT} commits like the hooks always did.
+ * <p/>
+ * Settings are compiled once per distinct configuration and shared by every push and merge check that uses it.
+ */
+public class HookSettings {
+    public static final String COMMITS_TO_INSPECT = "commitsToInspect";
+    public static final String ADAPTIVE = "adaptive";
+    public static final String FIRST_PARENT = "firstParent";
+    public static final String MAX_COMMITS_TO_INSPECT = "maxCommitsToInspect";
+    public static final String MAX_INSPECTION_TIME = "maxInspectionTime";
+    public static final String PROTECTED_BRANCHES = "protectedBranches";
+    public static final String FIX_TOKENS = "fixTokens";
+    public static final String MAX_FIX_COMMITS = "maxFixCommits";
+    public static final String MAX_DECISION_TIME = "maxDecisionTime";
+    public static final String MAX_VERDICT_AGE = "maxVerdictAge";
+    public static final String TIMEOUT_POLICY = "timeoutPolicy";
+    public static final String REQUIRED_BUILDS = "requiredBuilds";
+    public static final String OPTIONAL_BUILDS = "optionalBuilds";
+    public static final String STALE_BUILD_AGE = "staleBuildAge";
+    public static final String MAX_PENDING_WAIT = "maxPendingWait";
+
+    public static final String FAIL_OPEN = "open";
+    public static final String FAIL_CLOSED = "closed";
+
+    public static final int DEFAULT_MAX_COMMITS_TO_INSPECT = 200;
+    public static final long DEFAULT_MAX_INSPECTION_TIME = 2000;
+    public static final int DEFAULT_MAX_FIX_COMMITS = 1000;
+    public static final int DEFAULT_MAX_VERDICT_AGE = 300;
+
+    public static final HookSettings DEFAULT = new HookSettings(Collections.<String, Object>emptyMap());
+
+    private static final int MAX_COMPILED = 1000;
+    private static final ConcurrentMap<Map<String, Object>, HookSettings> compiled = new ConcurrentHashMap<Map<String, Object>, HookSettings>();
+
+    private final BranchMatcher protectedBranches;
+    private final int commitsToInspect;
+    private final boolean adaptive;
+    private final boolean firstParent;
+    private final int maxCommitsToInspect;
+    private final long maxInspectionTime;
+    private final FixMatcher fixMatcher;
+    private final int maxFixCommits;
+    private final long maxDecisionTime;
+    private final long maxVerdictAge;
+    private final String timeoutPolicy;
+    private final AggregationPolicy aggregationPolicy;
+    private final long maxPendingWait;
+
+    private HookSettings(Map<String, Object> values) {
+        commitsToInspect = getInt(values, COMMITS_TO_INSPECT, AbstractRejectHook.COMMITS_TO_INSPECT);
+        adaptive = getBoolean(values, ADAPTIVE);
+        firstParent = getBoolean(values, FIRST_PARENT);
+        maxCommitsToInspect = Math.max(commitsToInspect, getInt(values, MAX_COMMITS_TO_INSPECT, DEFAULT_MAX_COMMITS_TO_INSPECT));
+        maxInspectionTime = getInt(values, MAX_INSPECTION_TIME, (int) DEFAULT_MAX_INSPECTION_TIME);
+        Object branches = values.get(PROTECTED_BRANCHES);
+        protectedBranches = branches == null ? BranchMatcher.NONE : new BranchMatcher(String.valueOf(branches));
+        Object fixTokens = values.get(FIX_TOKENS);
+        fixMatcher = fixTokens == null || String.valueOf(fixTokens).trim().length() == 0 ?
+                FixMatcher.DEFAULT : new FixMatcher(String.valueOf(fixTokens));
+        maxFixCommits = getInt(values, MAX_FIX_COMMITS, DEFAULT_MAX_FIX_COMMITS);
+        maxDecisionTime = getInt(values, MAX_DECISION_TIME, -1);
+        maxVerdictAge = TimeUnit.SECONDS.toMillis(getInt(values, MAX_VERDICT_AGE, DEFAULT_MAX_VERDICT_AGE));
+        Object policy = values.get(TIMEOUT_POLICY);
+        timeoutPolicy = FAIL_OPEN.equals(policy) || FAIL_CLOSED.equals(policy) ? (String) policy : null;
+        aggregationPolicy = getAggregationPolicy(values);
+        maxPendingWait = TimeUnit.SECONDS.toMillis(getInt(values, MAX_PENDING_WAIT, 0));
+    }
+
+    public static HookSettings of(Settings settings) {
+        if (settings == null) {
+            return DEFAULT;
+        }
+        Map<String, Object> values = settings.asMap();
+        HookSettings hookSettings = compiled.get(values);
+        if (hookSettings == null) {
+            hookSettings = new HookSettings(values);
+            // past the limit settings are compiled for every check rather than evicting ones still in use
+            if (compiled.size() < MAX_COMPILED) {
+                compiled.putIfAbsent(values, hookSettings);
+            }
+        }
+        return hookSettings;
+    }
+
+    public static void validate(Settings settings, SettingsValidationErrors errors) {
+        validate(settings, errors, 0);
+    }
+
+    /**
+     * @param maxPendingWait how long, in seconds, the server lets a push wait for pending builds at most, or {@code 0}
+     *                       if it does not limit the wait
+     */
+    public static void validate(Settings settings, SettingsValidationErrors errors, int maxPendingWait) {
+        Map<String, Object> values = settings.asMap();
+        validatePositiveInt(values, COMMITS_TO_INSPECT, errors);
+        validatePositiveInt(values, MAX_COMMITS_TO_INSPECT, errors);
+        validatePositiveInt(values, MAX_INSPECTION_TIME, errors);
+        validatePositiveInt(values, MAX_FIX_COMMITS, errors);
+        validatePositiveInt(values, MAX_DECISION_TIME, errors);
+        validatePositiveInt(values, MAX_VERDICT_AGE, errors);
+        validatePositiveInt(values, STALE_BUILD_AGE, errors);
+        validatePositiveInt(values, MAX_PENDING_WAIT, maxPendingWait, errors);
+        try {
+            getAggregationPolicy(values);
+        } catch (IllegalArgumentException e) {
+            errors.addFieldError(REQUIRED_BUILDS, e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether pushes and merges to the ref are checked; the default branch always is
+     */
+    public boolean isProtected(String refId, String defaultBranchId) {
+        return protectedBranches.matches(refId) || refId.equals(defaultBranchId);
+    }
+
+    /**
+     * @return the branches protected in addition to the default branch
+     */
+    public BranchMatcher getProtectedBranches() {
+        return protectedBranches;
+    }
+
+    /**
+     * @return how many commits to inspect, or with {@link #isAdaptive()} how many to start with
+     */
+    public int getCommitsToInspect() {
+        return commitsToInspect;
+    }
+
+    /**
+     * @return whether to keep paging through older history until a decisive build is found
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return whether to only inspect the first-parent history of a branch, the commits made on the branch itself
+     *         rather than the ones merged into it
+     */
+    public boolean isFirstParent() {
+        return firstParent;
+    }
+
+    public int getMaxCommitsToInspect() {
+        return adaptive ? maxCommitsToInspect : commitsToInspect;
+    }
+
+    /**
+     * @return how long, in milliseconds, an adaptive inspection may keep paging through history
+     */
+    public long getMaxInspectionTime() {
+        return maxInspectionTime;
+    }
+
+    /**
+     * @return the matcher for the claims in pushed commit messages that they fix the broken build
+     */
+    public FixMatcher getFixMatcher() {
+        return fixMatcher;
+    }
+
+    /**
+     * @return how many of the pushed commits to scan for a claim that they fix the broken build
+     */
+    public int getMaxFixCommits() {
+        return maxFixCommits;
+    }
+
+    /**
+     * @param defaultTime the budget configured for the whole server
+     * @return how long, in milliseconds, a push or merge check may spend deciding before falling back to a stale
+     *         verdict or the timeout policy
+     */
+    public long getMaxDecisionTime(long defaultTime) {
+        return maxDecisionTime > 0 ? maxDecisionTime : defaultTime;
+    }
+
+    /**
+     * @return how old, in milliseconds, the last verdict of a branch may be to be used when a check runs out of time
+     */
+    public long getMaxVerdictAge() {
+        return maxVerdictAge;
+    }
+
+    /**
+     * @param defaultFailOpen the policy configured for the whole server
+     * @return whether to allow pushes and merges that cannot be decided in time
+     */
+    public boolean isFailOpen(boolean defaultFailOpen) {
+        return timeoutPolicy == null ? defaultFailOpen : FAIL_OPEN.equals(timeoutPolicy);
+    }
+
+    /**
+     * @return how the build statuses of each commit are folded into its build state
+     */
+    public AggregationPolicy getAggregationPolicy() {
+        return aggregationPolicy;
+    }
+
+    /**
+     * @return how long, in milliseconds, a push may wait for the running builds of its branch to finish rather than
+     *         be rejected straight away, or {@code 0} not to wait
+     */
+    public long getMaxPendingWait() {
+        return maxPendingWait;
+    }
+
+    /**
+     * @return a key that differs between settings that can reach different verdicts for the same head
+     */
+    public String getCacheKey() {
+        String key = adaptive ? "a" + commitsToInspect + "-" + maxCommitsToInspect : String.valueOf(commitsToInspect);
+        if (firstParent) {
+            key = "f" + key;
+        }
+        return aggregationPolicy.isDefault() ? key : key + "~" + aggregationPolicy.getKey();
+    }
+
+    private static AggregationPolicy getAggregationPolicy(Map<String, Object> values) {
+        Object requiredBuilds = values.get(REQUIRED_BUILDS);
+        Object optionalBuilds = values.get(OPTIONAL_BUILDS);
+        int staleBuildAge = getInt(values, STALE_BUILD_AGE, 0);
+        if (requiredBuilds == null && optionalBuilds == null && staleBuildAge == 0) {
+            return AggregationPolicy.DEFAULT;
+        }
+        AggregationPolicy aggregationPolicy = new AggregationPolicy(requiredBuilds == null ? "" : String.valueOf(requiredBuilds),
+                optionalBuilds == null ? "" : String.valueOf(optionalBuilds), staleBuildAge);
+        return aggregationPolicy.isDefault() ? AggregationPolicy.DEFAULT : aggregationPolicy;
+    }
+
+    private static void validatePositiveInt(Map<String, Object> values, String key, SettingsValidationErrors errors) {
+        validatePositiveInt(values, key, 0, errors);
+    }
+
+    /**
+     * @param max the largest value allowed, or {@code 0} for no limit
+     */
+    private static void validatePositiveInt(Map<String, Object> values, String key, int max, SettingsValidationErrors errors) {
+        Object value = values.get(key);
+        if (value == null || String.valueOf(value).trim().length() == 0) {
+            return;
+        }
+        try {
+            int parsed = Integer.parseInt(String.valueOf(value).trim());
+            if (parsed > 0 && max > 0 && parsed > max) {
+                errors.addFieldError(key, "Must be at most " + max + ", the limit set for the server");
+                return;
+            }
+            if (parsed > 0) {
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        errors.addFieldError(key, "Must be a positive number");
+    }
+
+    private static int getInt(Map<String, Object> values, String key, int defaultValue) {
+        Object value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        int parsed;
+        if (value instanceof Number) {
+            parsed = ((Number) value).intValue();
+        } else {
+            try {
+                parsed = Integer.parseInt(String.valueOf(value).trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return parsed > 0 ? parsed : defaultValue;
+    }
+
+    private static boolean getBoolean(Map<String, Object> values, String key) {
+        Object value = values.get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && ("true".equals(value) || "on".equals(value));
+    }
+}
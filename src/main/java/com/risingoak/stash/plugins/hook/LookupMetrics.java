@@ -0,0 +1,54 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LookupMetrics implements LookupMetricsMBean {
+    private final AtomicLong findAllCalls = new AtomicLong();
+    private final AtomicLong getStatsCalls = new AtomicLong();
+    private final AtomicLong getChangesetsCalls = new AtomicLong();
+    private final AtomicLong getChangesetsBetweenCalls = new AtomicLong();
+
+    void countFindAll() {
+        findAllCalls.incrementAndGet();
+    }
+
+    void countGetStats() {
+        getStatsCalls.incrementAndGet();
+    }
+
+    void countGetChangesets() {
+        getChangesetsCalls.incrementAndGet();
+    }
+
+    void countGetChangesetsBetween() {
+        getChangesetsBetweenCalls.incrementAndGet();
+    }
+
+    @Override
+    public long getFindAllCalls() {
+        return findAllCalls.get();
+    }
+
+    @Override
+    public long getGetStatsCalls() {
+        return getStatsCalls.get();
+    }
+
+    @Override
+    public long getGetChangesetsCalls() {
+        return getChangesetsCalls.get();
+    }
+
+    @Override
+    public long getGetChangesetsBetweenCalls() {
+        return getChangesetsBetweenCalls.get();
+    }
+
+    @Override
+    public void reset() {
+        findAllCalls.set(0);
+        getStatsCalls.set(0);
+        getChangesetsCalls.set(0);
+        getChangesetsBetweenCalls.set(0);
+    }
+}
@@ -0,0 +1,16 @@
+package com.risingoak.stash.plugins.hook;
+
+/**
+ * Calls made by the hooks to the Stash services they depend on, across all repositories.
+ */
+public interface LookupMetricsMBean {
+    long getFindAllCalls();
+
+    long getGetStatsCalls();
+
+    long getGetChangesetsCalls();
+
+    long getGetChangesetsBetweenCalls();
+
+    void reset();
+}
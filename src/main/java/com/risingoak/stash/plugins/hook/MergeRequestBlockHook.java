@@ -1,45 +1,126 @@
 package com.risingoak.stash.plugins.hook;
 
 import com.atlassian.stash.build.BuildStatusService;
-import com.atlassian.stash.content.Changeset;
 import com.atlassian.stash.commit.CommitService;
 import com.atlassian.stash.hook.repository.RepositoryMergeRequestCheck;
 import com.atlassian.stash.hook.repository.RepositoryMergeRequestCheckContext;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.repository.Ref;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RefService;
 import com.atlassian.stash.scm.pull.MergeRequest;
-import com.atlassian.stash.util.Page;
-import com.atlassian.stash.util.PageRequestImpl;
+import com.atlassian.stash.setting.RepositorySettingsValidator;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.setting.SettingsValidationErrors;
 
 import javax.annotation.Nonnull;
 
 import static java.lang.String.format;
 
-public class MergeRequestBlockHook extends AbstractRejectHook implements RepositoryMergeRequestCheck {
-    public MergeRequestBlockHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService) {
-        super(repositoryMetadataService, historyService, buildStatusService);
+public class MergeRequestBlockHook extends AbstractRejectHook implements RepositoryMergeRequestCheck, RepositorySettingsValidator {
+    public MergeRequestBlockHook(RefService repositoryMetadataService, CommitService historyService, BranchStateResolver branchStateResolver,
+                                 BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, DecisionTraceLog decisionTraceLog) {
+        super(repositoryMetadataService, historyService, branchStateResolver, branchVerdictIndex, hookMetrics, decisionTraceLog);
+    }
+
+    /**
+     * Creates a check with a resolver of its own.
+     */
+    MergeRequestBlockHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService,
+                          BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                          BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics, DecisionTraceLog decisionTraceLog) {
+        this(repositoryMetadataService, historyService, new BranchStateResolver(historyService, buildStatusService, branchStateCache,
+                statusLookupExecutor, branchVerdictIndex, hookMetrics), branchVerdictIndex, hookMetrics, decisionTraceLog);
+    }
+
+    /**
+     * Creates a check that does not trace its decisions.
+     */
+    MergeRequestBlockHook(RefService repositoryMetadataService, BuildStatusService buildStatusService, CommitService historyService,
+                          BranchStateCache branchStateCache, StatusLookupExecutor statusLookupExecutor,
+                          BranchVerdictIndex branchVerdictIndex, HookMetrics hookMetrics) {
+        this(repositoryMetadataService, buildStatusService, historyService, branchStateCache, statusLookupExecutor,
+                branchVerdictIndex, hookMetrics, null);
     }
 
     @Override
     public void check(@Nonnull RepositoryMergeRequestCheckContext repositoryMergeRequestCheckContext) {
+        long start = System.nanoTime();
         MergeRequest mergeRequest = repositoryMergeRequestCheckContext.getMergeRequest();
-        Repository repository = mergeRequest.getPullRequest().getToRef().getRepository();
-        String branchName = repositoryMetadataService.getDefaultBranch(repository).getDisplayId();
-
-        Page<Changeset> changesets = historyService.getChangesets(repository, null, null, new PageRequestImpl(0, COMMITS_TO_INSPECT));
-
-        BranchState defaultBranchState = getAggregatedStatus(changesets);
-        switch (defaultBranchState.state) {
-            case INPROGRESS:
-                mergeRequest.veto("Too many pending builds", format("REJECTED: Too many pending builds on branch %s, wait a couple of minutes and try again.", branchName));
-                return;
-            case FAILED:
-                mergeRequest.veto("Destination branch is failed", format("REJECTED: Branch %s has at least 1 failed build for commit %s", branchName, defaultBranchState.commit));
+        final PullRequestRef toRef = mergeRequest.getPullRequest().getToRef();
+        final Repository repository = toRef.getRepository();
+        DecisionTrace.Builder trace = null;
+        HookSettings traceSettings = null;
+        boolean accepted = true;
+        try {
+            final HookSettings settings = HookSettings.of(repositoryMergeRequestCheckContext.getSettings());
+            if (!settings.getProtectedBranches().matches(toRef.getId()) &&
+                    !toRef.getId().equals(repositoryMetadataService.getDefaultBranch(repository).getId())) {
                 return;
-            case UNDEFINED:
-                return;
-            case SUCCESSFUL:
+            }
+            String branchName = toRef.getDisplayId();
+            trace = new DecisionTrace.Builder(DecisionTrace.MERGE, repository.getId(), toRef.getId());
+            traceSettings = settings;
+
+            // every pull request into the branch shares the verdict for its current head
+            String head = toRef.getLatestChangeset();
+            if (head == null) {
+                head = resolveHead(repository, toRef.getId());
+            }
+            BranchState targetBranchState;
+            if (head == null) {
+                // an empty branch has no builds to break
+                targetBranchState = BranchState.UNDEFINED;
+            } else {
+                targetBranchState = branchStateResolver.getBranchState(repository, toRef.getId(), head, settings,
+                        branchStateResolver.getDecisionDeadline(settings));
+            }
+            trace.head(head).verdict(targetBranchState);
+            RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+            metrics.recordVerdict(targetBranchState.state);
+            if (targetBranchState.timedOut) {
+                if (targetBranchState.state == BuildState.UNDEFINED) {
+                    // a merge check has no way to tell the user, so letting it through is at least counted and traced
+                    metrics.recordFailOpen();
+                } else {
+                    accepted = false;
+                    mergeRequest.veto("Build status unavailable", format("REJECTED: The builds of branch %s could not be checked in time, wait a couple of minutes and try again.", branchName));
+                }
                 return;
+            }
+            String basis = targetBranchState.stale ? " (last known result, the builds could not be checked in time)" : "";
+            switch (targetBranchState.state) {
+                case INPROGRESS:
+                    accepted = false;
+                    mergeRequest.veto("Too many pending builds", format("REJECTED: Too many pending builds on branch %s, wait a couple of minutes and try again%s.", branchName, basis));
+                    return;
+                case FAILED:
+                    accepted = false;
+                    mergeRequest.veto("Destination branch is failed", format("REJECTED: Branch %s has at least 1 failed build for commit %s%s", branchName, targetBranchState.commit, basis));
+                    return;
+                case UNDEFINED:
+                    return;
+                case SUCCESSFUL:
+                    return;
+            }
+        } finally {
+            if (trace != null) {
+                traceDecision(trace, repository, traceSettings, accepted);
+            }
+            hookMetrics.forRepository(repository).recordDecision(System.nanoTime() - start);
         }
     }
+
+    /**
+     * @return the commit the branch currently points at, or {@code null} if it has none
+     */
+    private String resolveHead(Repository repository, String refId) {
+        Ref ref = repositoryMetadataService.resolveRef(repository, refId);
+        return ref == null ? null : ref.getLatestChangeset();
+    }
+
+    @Override
+    public void validate(@Nonnull Settings settings, @Nonnull SettingsValidationErrors errors, @Nonnull Repository repository) {
+        HookSettings.validate(settings, errors);
+    }
 }
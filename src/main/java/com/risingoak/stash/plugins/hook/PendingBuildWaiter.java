@@ -0,0 +1,192 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets a push to a branch whose builds are still running wait for them on the server instead of being rejected and
+ * retried. Waiters are woken as soon as a build status is set on one of the commits they wait for; all the waiters
+ * for a branch share one subscription to those commits, so a burst of pushes waiting on the same builds costs a
+ * single set lookup per build status event rather than one poll per push.
+ * <p/>
+ * Every waiter holds a request thread, so only so many may wait at once; further pushes are decided straight away
+ * as they would be without waiting. How long each may wait is capped for the whole server, whatever the repository
+ * asks for.
+ * <p/>
+ * Waiters are only woken here. Listeners run in no particular order, so a woken waiter may still find the old
+ * state cached and has to look again shortly after.
+ */
+public class PendingBuildWaiter implements InitializingBean, DisposableBean {
+    public static final String MAX_WAITERS_PROPERTY = "plugin.broken-build-hook.wait.max-waiters";
+    public static final String MAX_WAIT_PROPERTY = "plugin.broken-build-hook.wait.max-wait";
+
+    public static final int DEFAULT_MAX_WAITERS = 10;
+    public static final int DEFAULT_MAX_WAIT = 300;
+
+    private final EventPublisher eventPublisher;
+    private final int maxWaiters;
+    private final int maxWait;
+    private final Map<String, BranchWatch> watches = new HashMap<String, BranchWatch>();
+    private int waiters;
+
+    public PendingBuildWaiter(EventPublisher eventPublisher, ApplicationPropertiesService propertiesService) {
+        this(eventPublisher, propertiesService.getPluginProperty(MAX_WAITERS_PROPERTY, DEFAULT_MAX_WAITERS),
+                propertiesService.getPluginProperty(MAX_WAIT_PROPERTY, DEFAULT_MAX_WAIT));
+    }
+
+    PendingBuildWaiter(EventPublisher eventPublisher, int maxWaiters) {
+        this(eventPublisher, maxWaiters, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * @param maxWait how long, in seconds, a push may wait at most
+     */
+    PendingBuildWaiter(EventPublisher eventPublisher, int maxWaiters, int maxWait) {
+        this.eventPublisher = eventPublisher;
+        this.maxWaiters = maxWaiters;
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() {
+        eventPublisher.unregister(this);
+        synchronized (watches) {
+            watches.clear();
+            watches.notifyAll();
+        }
+    }
+
+    @EventListener
+    public void onBuildStatusSet(BuildStatusSetEvent event) {
+        // the cache and the index forget the old state from their own listeners, which may run after this one
+        String commitId = event.getChangesetId();
+        synchronized (watches) {
+            boolean woken = false;
+            for (BranchWatch watch : watches.values()) {
+                if (watch.commits.contains(commitId)) {
+                    watch.events++;
+                    woken = true;
+                }
+            }
+            if (woken) {
+                watches.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts waiting for build statuses to be set on {@code commits} of the branch. The subscription must be closed
+     * once done with.
+     *
+     * @return the subscription, or {@code null} if too many pushes are already waiting
+     */
+    Subscription subscribe(Repository repository, String refId, Collection<String> commits) {
+        String key = repository.getId() + ":" + refId;
+        synchronized (watches) {
+            if (waiters >= maxWaiters) {
+                return null;
+            }
+            waiters++;
+            BranchWatch watch = watches.get(key);
+            if (watch == null) {
+                watch = new BranchWatch();
+                watches.put(key, watch);
+            }
+            watch.waiters++;
+            watch.commits.addAll(commits);
+            return new Subscription(key, watch);
+        }
+    }
+
+    /**
+     * @return how long, in seconds, a push may wait at most, whatever its repository is configured with
+     */
+    int getMaxWait() {
+        return maxWait;
+    }
+
+    int getWaiters() {
+        synchronized (watches) {
+            return waiters;
+        }
+    }
+
+    /**
+     * The commits of a branch that its waiters wait for, and how many build statuses have been set on them.
+     */
+    private static class BranchWatch {
+        private final Set<String> commits = new HashSet<String>();
+        private int waiters;
+        private long events;
+    }
+
+    class Subscription {
+        private final String key;
+        private final BranchWatch watch;
+        private long seen;
+        private boolean closed;
+
+        private Subscription(String key, BranchWatch watch) {
+            this.key = key;
+            this.watch = watch;
+            this.seen = watch.events;
+        }
+
+        /**
+         * Also waits for build statuses set on {@code commits} from now on.
+         */
+        void watch(Collection<String> commits) {
+            synchronized (watches) {
+                watch.commits.addAll(commits);
+            }
+        }
+
+        /**
+         * Waits for a build status to be set on one of the watched commits of the branch since the last call.
+         *
+         * @return whether one was set, rather than {@code millis} passing first
+         */
+        boolean await(long millis) throws InterruptedException {
+            long giveUpAt = System.currentTimeMillis() + millis;
+            synchronized (watches) {
+                long remaining = millis;
+                while (watch.events == seen && remaining > 0 && watches.get(key) == watch) {
+                    watches.wait(remaining);
+                    remaining = giveUpAt - System.currentTimeMillis();
+                }
+                boolean woken = watch.events != seen;
+                seen = watch.events;
+                return woken;
+            }
+        }
+
+        void close() {
+            synchronized (watches) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                waiters--;
+                if (--watch.waiters == 0 && watches.get(key) == watch) {
+                    watches.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RepositoryMetrics implements RepositoryMetricsMBean {
+    private final int repositoryId;
+    private final Histogram decisionTimes = new Histogram();
+    private final Histogram commitsInspected = new Histogram();
+    private final AtomicLongArray verdicts = new AtomicLongArray(AbstractRejectHook.BuildState.values().length);
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong staleVerdicts = new AtomicLong();
+    private final AtomicLong failOpens = new AtomicLong();
+
+    RepositoryMetrics(int repositoryId) {
+        this.repositoryId = repositoryId;
+    }
+
+    void recordDecision(long nanos) {
+        decisionTimes.record(nanos / 1000);
+    }
+
+    /**
+     * Counts the state a push or merge into a protected branch was judged on; a push to several protected branches
+     * counts one verdict per branch.
+     */
+    void recordVerdict(AbstractRejectHook.BuildState verdict) {
+        verdicts.incrementAndGet(verdict.ordinal());
+    }
+
+    void recordCommitsInspected(int commits) {
+        commitsInspected.record(commits);
+    }
+
+    void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    void recordStaleVerdict() {
+        staleVerdicts.incrementAndGet();
+    }
+
+    /**
+     * Counts a push or merge that ran out of time and was let through by the fail-open policy.
+     */
+    void recordFailOpen() {
+        failOpens.incrementAndGet();
+    }
+
+    @Override
+    public int getRepositoryId() {
+        return repositoryId;
+    }
+
+    @Override
+    public long getDecisions() {
+        return decisionTimes.getCount();
+    }
+
+    @Override
+    public double getDecisionTimeMeanMillis() {
+        return decisionTimes.getMean() / 1000;
+    }
+
+    @Override
+    public double getDecisionTimeP50Millis() {
+        return decisionTimes.getPercentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getDecisionTimeP99Millis() {
+        return decisionTimes.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getDecisionTimeP999Millis() {
+        return decisionTimes.getPercentile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getDecisionTimeMaxMillis() {
+        return decisionTimes.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getCommitsInspected() {
+        return commitsInspected.getSum();
+    }
+
+    @Override
+    public double getCommitsInspectedMean() {
+        return commitsInspected.getMean();
+    }
+
+    @Override
+    public long getCommitsInspectedP99() {
+        return commitsInspected.getPercentile(0.99);
+    }
+
+    @Override
+    public long getSuccessfulVerdicts() {
+        return verdicts.get(AbstractRejectHook.BuildState.SUCCESSFUL.ordinal());
+    }
+
+    @Override
+    public long getFailedVerdicts() {
+        return verdicts.get(AbstractRejectHook.BuildState.FAILED.ordinal());
+    }
+
+    @Override
+    public long getInProgressVerdicts() {
+        return verdicts.get(AbstractRejectHook.BuildState.INPROGRESS.ordinal());
+    }
+
+    @Override
+    public long getUndefinedVerdicts() {
+        return verdicts.get(AbstractRejectHook.BuildState.UNDEFINED.ordinal());
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getStaleVerdicts() {
+        return staleVerdicts.get();
+    }
+
+    @Override
+    public long getFailOpens() {
+        return failOpens.get();
+    }
+
+    @Override
+    public void reset() {
+        decisionTimes.reset();
+        commitsInspected.reset();
+        for (int i = 0; i < verdicts.length(); i++) {
+            verdicts.set(i, 0);
+        }
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        timeouts.set(0);
+        staleVerdicts.set(0);
+        failOpens.set(0);
+    }
+}
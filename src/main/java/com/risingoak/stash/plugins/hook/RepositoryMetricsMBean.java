@@ -0,0 +1,59 @@
+package com.risingoak.stash.plugins.hook;
+
+/**
+ * The decisions made by the hooks for a single repository since the plugin started or the last {@link #reset()}.
+ * Decision times cover the whole {@code onReceive} or {@code check} call, including pushes and merges that turn
+ * out not to touch a protected branch.
+ */
+public interface RepositoryMetricsMBean {
+    int getRepositoryId();
+
+    long getDecisions();
+
+    double getDecisionTimeMeanMillis();
+
+    double getDecisionTimeP50Millis();
+
+    double getDecisionTimeP99Millis();
+
+    double getDecisionTimeP999Millis();
+
+    double getDecisionTimeMaxMillis();
+
+    long getCommitsInspected();
+
+    double getCommitsInspectedMean();
+
+    long getCommitsInspectedP99();
+
+    long getSuccessfulVerdicts();
+
+    long getFailedVerdicts();
+
+    long getInProgressVerdicts();
+
+    long getUndefinedVerdicts();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    /**
+     * @return checks that ran out of time and were decided by the timeout policy
+     */
+    long getTimeouts();
+
+    /**
+     * @return checks that ran out of time and were decided on the last known verdict of the branch
+     */
+    long getStaleVerdicts();
+
+    /**
+     * @return checks that ran out of time and were let through by the fail-open policy, with nothing to go on
+     */
+    long getFailOpens();
+
+    void reset();
+}
@@ -0,0 +1,281 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the build states of a {@link CommitWindow} concurrently on a small pool owned by the plugin, for when a
+ * bulk lookup is not available. Lookups are cancelled as soon as the newest decisive commit is known and every
+ * newer commit is resolved, so a decision costs roughly the slowest lookup it actually needs.
+ * <p/>
+ * Build statuses are global to a commit and do not depend on the pushing user, so running the lookups away from
+ * the request thread does not change what they return.
+ * <p/>
+ * Whole decisions are run on a second pool by {@link #callBefore(long, Callable)}, so that a request thread waits
+ * no longer than the time budget of the decision however slow the status store is. Decisions read the history of
+ * the repository, so they run with read access to it.
+ */
+public class StatusLookupExecutor implements DisposableBean {
+    public static final String THREADS_PROPERTY = "plugin.broken-build-hook.lookup.threads";
+    public static final String QUEUE_PROPERTY = "plugin.broken-build-hook.lookup.queue";
+    public static final String TIMEOUT_PROPERTY = "plugin.broken-build-hook.lookup.timeout";
+    public static final String FAIL_OPEN_PROPERTY = "plugin.broken-build-hook.lookup.fail-open";
+    public static final String BULK_PROPERTY = "plugin.broken-build-hook.lookup.bulk";
+    public static final String DECISION_THREADS_PROPERTY = "plugin.broken-build-hook.decision.threads";
+    public static final String DECISION_QUEUE_PROPERTY = "plugin.broken-build-hook.decision.queue";
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE = 100;
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_DECISION_THREADS = 8;
+    public static final int DEFAULT_DECISION_QUEUE = 50;
+
+    private final SecurityService securityService;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor decisions;
+    private final long timeout;
+    private final boolean failOpen;
+    private volatile boolean bulkLookups;
+
+    public StatusLookupExecutor(ApplicationPropertiesService propertiesService, SecurityService securityService) {
+        this(propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS),
+                propertiesService.getPluginProperty(QUEUE_PROPERTY, DEFAULT_QUEUE),
+                propertiesService.getPluginProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT),
+                propertiesService.getPluginProperty(FAIL_OPEN_PROPERTY, true),
+                propertiesService.getPluginProperty(BULK_PROPERTY, true),
+                propertiesService.getPluginProperty(DECISION_THREADS_PROPERTY, DEFAULT_DECISION_THREADS),
+                propertiesService.getPluginProperty(DECISION_QUEUE_PROPERTY, DEFAULT_DECISION_QUEUE),
+                securityService);
+    }
+
+    StatusLookupExecutor(int threads, int queue, long timeout, boolean failOpen, boolean bulkLookups) {
+        this(threads, queue, timeout, failOpen, bulkLookups, DEFAULT_DECISION_THREADS, DEFAULT_DECISION_QUEUE, null);
+    }
+
+    StatusLookupExecutor(int threads, int queue, long timeout, boolean failOpen, boolean bulkLookups,
+                         int decisionThreads, int decisionQueue, SecurityService securityService) {
+        this.securityService = securityService;
+        this.timeout = timeout;
+        this.failOpen = failOpen;
+        this.bulkLookups = bulkLookups;
+        // when the pool is saturated the pushing thread does the lookup itself rather than failing the push
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queue), new LookupThreadFactory("broken-build-hook-lookup-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        // unlike lookups, decisions are never run on the request thread, which is what they protect
+        this.decisions = new ThreadPoolExecutor(decisionThreads, decisionThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(decisionQueue), new LookupThreadFactory("broken-build-hook-decision-"));
+        this.decisions.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        decisions.shutdownNow();
+    }
+
+    /**
+     * @return how long a single decision may spend looking up build statuses, in milliseconds, unless the repository
+     *         sets its own budget
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the state to decide on when the lookups do not finish in time
+     */
+    public AbstractRejectHook.BuildState getTimeoutState() {
+        return failOpen ? AbstractRejectHook.BuildState.UNDEFINED : AbstractRejectHook.BuildState.INPROGRESS;
+    }
+
+    /**
+     * @return whether to allow pushes and merges that cannot be decided in time, unless the repository sets its own
+     *         policy
+     */
+    public boolean isFailOpen() {
+        return failOpen;
+    }
+
+    /**
+     * Runs {@code task} on the decision pool and waits for it until {@code deadline}. A task still running at the
+     * deadline is left to finish, so that what it computes is cached for the next check.
+     *
+     * @return the result of the task, or {@code null} if it did not finish in time or the pool is saturated
+     */
+    <T> T callBefore(long deadline, final Callable<T> task) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return null;
+        }
+        Future<T> future;
+        try {
+            future = decisions.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return callWithRepositoryAccess(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        try {
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Runs {@code task} with read access to every repository, for work done away from the request that needs it.
+     */
+    <T> T callWithRepositoryAccess(final Callable<T> task) throws Exception {
+        if (securityService == null) {
+            return task.call();
+        }
+        return securityService.withPermission(Permission.REPO_READ, "Checking the builds of protected branches")
+                .call(new Operation<T, Exception>() {
+                    @Override
+                    public T perform() throws Exception {
+                        return task.call();
+                    }
+                });
+    }
+
+    public boolean isBulkLookupEnabled() {
+        return bulkLookups;
+    }
+
+    /**
+     * Falls back to per-commit lookups for the rest of the plugin's life, for status stores without bulk support.
+     */
+    public void disableBulkLookups() {
+        bulkLookups = false;
+    }
+
+    /**
+     * Resolves the unknown states of the window from {@code from} onwards, recording them in the window from the
+     * calling thread only. States that are not needed for the verdict, or that do not arrive before
+     * {@code deadline}, are left {@code null}.
+     */
+    void resolve(final CommitWindow window, int from, long deadline, final StatusLookup lookup) {
+        CompletionService<Resolved> completionService = new ExecutorCompletionService<Resolved>(executor);
+        Future<?>[] futures = new Future<?>[window.size()];
+        int pending = 0;
+        for (int i = from; i < window.size(); i++) {
+            if (window.states[i] == null) {
+                final int index = i;
+                final String id = window.ids[i];
+                futures[i] = completionService.submit(new Callable<Resolved>() {
+                    @Override
+                    public Resolved call() {
+                        return new Resolved(index, lookup.getBuildState(id));
+                    }
+                });
+                pending++;
+            }
+        }
+
+        try {
+            while (pending > 0 && !isDecided(window)) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<Resolved> done = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    break;
+                }
+                pending--;
+                try {
+                    Resolved resolved = done.get();
+                    window.states[resolved.index] = resolved.state;
+                } catch (ExecutionException e) {
+                    throw propagate(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<?> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the states resolved so far are enough to fold the window without looking at the rest
+     */
+    static boolean isDecided(CommitWindow window) {
+        for (int i = 0; i < window.size(); i++) {
+            AbstractRejectHook.BuildState state = window.states[i];
+            if (state == null) {
+                return false;
+            }
+            if (state == AbstractRejectHook.BuildState.SUCCESSFUL || state == AbstractRejectHook.BuildState.FAILED) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    private static class Resolved {
+        private final int index;
+        private final AbstractRejectHook.BuildState state;
+
+        private Resolved(int index, AbstractRejectHook.BuildState state) {
+            this.index = index;
+            this.state = state;
+        }
+    }
+
+    interface StatusLookup {
+        AbstractRejectHook.BuildState getBuildState(String changesetId);
+    }
+
+    private static class LookupThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private LookupThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
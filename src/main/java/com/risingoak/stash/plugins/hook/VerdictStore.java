@@ -0,0 +1,37 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where the {@link BranchStateCache} and the {@link BranchVerdictIndex} share what they know with the other nodes of
+ * a cluster. The cache stores the build state of every commit it resolves under {@link #STATE_PREFIX} and removes
+ * it when a build status is set on the commit; the index stores the last checked state of each protected branch
+ * under {@link #BRANCH_PREFIX}.
+ * <p/>
+ * Entries read from the store are only trusted as far as the commit states they were computed from are still in
+ * it, so removing a single commit state is enough to invalidate every verdict that depended on it on every node.
+ * <p/>
+ * The store may be remote, so callers read and write the states of a whole window at once and never while holding
+ * a lock.
+ */
+public interface VerdictStore {
+    String STATE_PREFIX = "state:";
+    String BRANCH_PREFIX = "branch:";
+
+    /**
+     * @return the value stored under the key, or {@code null} if there is none
+     */
+    String get(String key);
+
+    /**
+     * @return the values stored under those of the keys that have one
+     */
+    Map<String, String> getAll(Collection<String> keys);
+
+    void put(String key, String value);
+
+    void putAll(Map<String, String> values);
+
+    void remove(String key);
+}
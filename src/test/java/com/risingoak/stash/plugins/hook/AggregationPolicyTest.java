@@ -0,0 +1,81 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.build.BuildStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregationPolicyTest {
+
+    @Test
+    public void shouldLetEveryBuildCountByDefault() {
+        AggregationPolicy policy = AggregationPolicy.DEFAULT;
+
+        assertTrue(policy.isDefault());
+        assertEquals(AbstractRejectHook.BuildState.FAILED, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("nightly", BuildStatus.State.FAILED, 0))));
+        assertEquals(AbstractRejectHook.BuildState.INPROGRESS, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("nightly", BuildStatus.State.INPROGRESS, 600))));
+        assertEquals(AbstractRejectHook.BuildState.UNDEFINED, policy.aggregate(Arrays.<BuildStatus>asList()));
+    }
+
+    @Test
+    public void shouldIgnoreOptionalBuilds() {
+        AggregationPolicy policy = new AggregationPolicy("", "nightly, perf", 0);
+
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("nightly", BuildStatus.State.FAILED, 0),
+                status("perf", BuildStatus.State.INPROGRESS, 0))));
+        assertEquals(AbstractRejectHook.BuildState.UNDEFINED, policy.aggregate(Arrays.asList(
+                status("nightly", BuildStatus.State.SUCCESSFUL, 0))));
+    }
+
+    @Test
+    public void shouldOnlyPassCommitsOnceEveryRequiredBuildHasPassed() {
+        AggregationPolicy policy = new AggregationPolicy("ci, integration", "", 0);
+
+        assertEquals(AbstractRejectHook.BuildState.UNDEFINED, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("nightly", BuildStatus.State.FAILED, 0))));
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("integration", BuildStatus.State.SUCCESSFUL, 0))));
+        assertEquals(AbstractRejectHook.BuildState.INPROGRESS, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("integration", BuildStatus.State.INPROGRESS, 0))));
+        assertEquals(AbstractRejectHook.BuildState.FAILED, policy.aggregate(Arrays.asList(
+                status("integration", BuildStatus.State.FAILED, 0))));
+    }
+
+    @Test
+    public void shouldIgnoreBuildsRunningForLongerThanTheStaleAge() {
+        AggregationPolicy policy = new AggregationPolicy("", "", 30);
+
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("perf", BuildStatus.State.INPROGRESS, 45))));
+        assertEquals(AbstractRejectHook.BuildState.INPROGRESS, policy.aggregate(Arrays.asList(
+                status("ci", BuildStatus.State.SUCCESSFUL, 0), status("perf", BuildStatus.State.INPROGRESS, 10))));
+        assertFalse(policy.isKept(AbstractRejectHook.BuildState.INPROGRESS));
+        assertTrue(policy.isKept(AbstractRejectHook.BuildState.FAILED));
+    }
+
+    @Test
+    public void shouldDistinguishPoliciesByKey() {
+        assertEquals(new AggregationPolicy("b, a", "", 0).getKey(), new AggregationPolicy("a b", "", 0).getKey());
+        assertFalse(new AggregationPolicy("a", "", 0).getKey().equals(new AggregationPolicy("", "a", 0).getKey()));
+        assertEquals("", AggregationPolicy.DEFAULT.getKey());
+    }
+
+    private static BuildStatus status(String key, BuildStatus.State state, int minutesAgo) {
+        BuildStatus status = mock(BuildStatus.class);
+        when(status.getKey()).thenReturn(key);
+        when(status.getState()).thenReturn(state);
+        when(status.getDateAdded()).thenReturn(new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutesAgo)));
+        return status;
+    }
+}
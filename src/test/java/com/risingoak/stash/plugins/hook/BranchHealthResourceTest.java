@@ -0,0 +1,266 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.build.BuildStats;
+import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.hook.repository.RepositoryHook;
+import com.atlassian.stash.hook.repository.RepositoryHookService;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.management.MBeanServerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BranchHealthResourceTest {
+    @Mock
+    private RefService refService;
+    @Mock
+    private CommitService commitService;
+    @Mock
+    private BuildStatusService buildStatusService;
+    @Mock
+    private RepositoryService repositoryService;
+    @Mock
+    private RepositoryHookService repositoryHookService;
+    @Mock
+    private RepositoryHook enabledHook;
+    @Mock
+    private EventPublisher eventPublisher;
+
+    private final Map<String, BuildStats> buildStats = new HashMap<String, BuildStats>();
+    private StatusLookupExecutor lookupExecutor;
+    private BranchVerdictIndex index;
+    private BranchHealthScanner scanner;
+
+    @Before
+    public void setUp() {
+        PluginSettingsFactory pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(mock(PluginSettings.class));
+        lookupExecutor = new StatusLookupExecutor(2, 10, 10000, true, true);
+        index = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory);
+        BranchStateResolver resolver = new BranchStateResolver(commitService, buildStatusService, new BranchStateCache(eventPublisher),
+                lookupExecutor, index, new HookMetrics(MBeanServerFactory.newMBeanServer()));
+        scanner = new BranchHealthScanner(refService, resolver, lookupExecutor, repositoryService, repositoryHookService, null, 2);
+        when(enabledHook.isEnabled()).thenReturn(true);
+        when(repositoryHookService.getByKey(any(Repository.class), eq(AbstractRejectHook.PUSH_HOOK_KEY))).thenReturn(enabledHook);
+        when(buildStatusService.getStats(anySetOf(String.class))).thenAnswer(new Answer<Map<String, BuildStats>>() {
+            @Override
+            public Map<String, BuildStats> answer(InvocationOnMock invocation) throws Throwable {
+                Map<String, BuildStats> result = new HashMap<String, BuildStats>();
+                for (Object id : (Iterable<?>) invocation.getArguments()[0]) {
+                    if (buildStats.containsKey(id)) {
+                        result.put((String) id, buildStats.get(id));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        scanner.destroy();
+        lookupExecutor.destroy();
+    }
+
+    @Test
+    public void shouldReportTheDefaultBranchOfEveryRepositoryAcrossPages() throws IOException {
+        Repository broken = mockRepository(1, "broken", "broken-head");
+        Repository green = mockRepository(2, "green", "green-head");
+        Repository empty = mockRepository(3, "empty", null);
+        when(refService.getDefaultBranch(empty)).thenThrow(new IllegalStateException("No default branch"));
+        buildStats.put("broken-head", stats(1, 0));
+        buildStats.put("green-head", stats(0, 1));
+        mockRepositoryPages(Arrays.asList(broken, green), Collections.singletonList(empty));
+
+        JsonObject health = getHealth(null);
+
+        assertEquals(3, health.get("scanned").getAsInt());
+        assertEquals(1, health.get("broken").getAsInt());
+        assertTrue(health.get("isLastPage").getAsBoolean());
+        assertFalse(health.has("nextPageStart"));
+        Map<String, JsonObject> bySlug = new HashMap<String, JsonObject>();
+        for (JsonElement repository : health.getAsJsonArray("repositories")) {
+            JsonObject object = repository.getAsJsonObject();
+            bySlug.put(object.get("repository").getAsString(), object);
+        }
+        assertEquals("FAILED", bySlug.get("broken").get("state").getAsString());
+        assertEquals("broken-head", bySlug.get("broken").get("commit").getAsString());
+        assertEquals("master", bySlug.get("broken").get("branch").getAsString());
+        assertEquals("SUCCESSFUL", bySlug.get("green").get("state").getAsString());
+        assertEquals("No default branch", bySlug.get("empty").get("error").getAsString());
+        assertFalse(bySlug.get("empty").has("state"));
+    }
+
+    @Test
+    public void shouldOnlyScanTheRequestedProject() throws IOException {
+        Repository repository = mockRepository(1, "repo", "head");
+        Page<Repository> page = page(Collections.singletonList(repository), true);
+        when(repositoryService.findByProjectKey(eq("PRJ"), isA(PageRequest.class))).thenReturn((Page) page);
+
+        JsonArray repositories = getHealth("PRJ").getAsJsonArray("repositories");
+
+        assertEquals(1, repositories.size());
+        assertEquals("UNDEFINED", repositories.get(0).getAsJsonObject().get("state").getAsString());
+    }
+
+    @Test
+    public void shouldOnlyListAsManyRepositoriesAsRequested() throws IOException {
+        Repository first = mockRepository(1, "first", "first-head");
+        Repository second = mockRepository(2, "second", "second-head");
+        Repository third = mockRepository(3, "third", "third-head");
+        mockRepositoryPages(Arrays.asList(first, second), Collections.singletonList(third));
+
+        JsonObject health = getHealth(null, 2);
+
+        assertEquals(2, health.get("scanned").getAsInt());
+        assertFalse(health.get("isLastPage").getAsBoolean());
+        assertEquals(2, health.get("nextPageStart").getAsInt());
+        verify(commitService, never()).getChangesets(eq(third), anyString(), anyString(), any(PageRequest.class));
+    }
+
+    @Test
+    public void shouldSkipRepositoriesWithoutTheHooksEnabled() throws IOException {
+        Repository checked = mockRepository(1, "checked", "checked-head");
+        Repository unchecked = mockRepository(2, "unchecked", "unchecked-head");
+        when(repositoryHookService.getByKey(unchecked, AbstractRejectHook.PUSH_HOOK_KEY)).thenReturn(null);
+        mockRepositoryPages(Collections.singletonList(checked), Collections.singletonList(unchecked));
+
+        JsonObject health = getHealth(null);
+
+        assertEquals(1, health.get("scanned").getAsInt());
+        assertEquals("checked", health.getAsJsonArray("repositories").get(0).getAsJsonObject().get("repository").getAsString());
+        verify(commitService, never()).getChangesets(eq(unchecked), anyString(), anyString(), any(PageRequest.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldEvaluateWithTheSettingsOfTheHookWithoutRememberingTheVerdict() throws IOException {
+        Repository repository = mockRepository(1, "repo", "head");
+        buildStats.put("head", stats(1, 0));
+        BuildStatus lint = mock(BuildStatus.class);
+        when(lint.getKey()).thenReturn("lint");
+        when(lint.getState()).thenReturn(BuildStatus.State.FAILED);
+        Page<BuildStatus> statuses = mock(Page.class);
+        when(statuses.getValues()).thenReturn(Collections.singletonList(lint));
+        when(buildStatusService.findAll("head")).thenReturn((Page) statuses);
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.REQUIRED_BUILDS, "ci"));
+        when(repositoryHookService.getSettings(repository, AbstractRejectHook.PUSH_HOOK_KEY)).thenReturn(settings);
+        mockRepositoryPages(Collections.singletonList(repository), Collections.<Repository>emptyList());
+
+        JsonObject health = getHealth(null);
+
+        // only the required build counts, so the failed lint build does not break the branch
+        assertEquals("UNDEFINED", health.getAsJsonArray("repositories").get(0).getAsJsonObject().get("state").getAsString());
+        assertNull(index.getIndexedRef(1, "refs/heads/master"));
+    }
+
+    private JsonObject getHealth(String projectKey) throws IOException {
+        return getHealth(projectKey, 100);
+    }
+
+    private JsonObject getHealth(String projectKey, int limit) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BranchHealthResource(scanner).writeHealth(projectKey, 0, limit, output);
+        return new JsonParser().parse(output.toString("UTF-8")).getAsJsonObject();
+    }
+
+    private Repository mockRepository(int id, String slug, String head) {
+        Repository repository = mock(Repository.class);
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("PRJ");
+        when(repository.getProject()).thenReturn(project);
+        when(repository.getSlug()).thenReturn(slug);
+        when(repository.getId()).thenReturn(id);
+        if (head != null) {
+            Branch branch = mock(Branch.class);
+            when(branch.getId()).thenReturn("refs/heads/master");
+            when(branch.getDisplayId()).thenReturn("master");
+            when(branch.getLatestChangeset()).thenReturn(head);
+            when(refService.getDefaultBranch(repository)).thenReturn(branch);
+            Changeset changeset = mock(Changeset.class);
+            when(changeset.getId()).thenReturn(head);
+            when(changeset.getDisplayId()).thenReturn(head);
+            Page<Changeset> history = mock(Page.class);
+            when(history.getValues()).thenReturn(Collections.singletonList(changeset));
+            when(history.getIsLastPage()).thenReturn(true);
+            when(commitService.getChangesets(eq(repository), eq(head), anyString(), any(PageRequest.class))).thenReturn(history);
+        }
+        return repository;
+    }
+
+    private void mockRepositoryPages(List<Repository> first, List<Repository> second) {
+        final Page<Repository> firstPage = page(first, false);
+        final Page<Repository> secondPage = page(second, true);
+        final Page<Repository> pastTheEnd = page(Collections.<Repository>emptyList(), true);
+        final int secondStart = first.size();
+        when(repositoryService.findAll(isA(PageRequest.class))).thenAnswer(new Answer<Page<Repository>>() {
+            @Override
+            public Page<Repository> answer(InvocationOnMock invocation) throws Throwable {
+                int start = ((PageRequest) invocation.getArguments()[0]).getStart();
+                return start == 0 ? firstPage : start == secondStart ? secondPage : pastTheEnd;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Page<Repository> page(List<Repository> repositories, boolean last) {
+        Page<Repository> page = mock(Page.class);
+        when(page.getValues()).thenReturn(new ArrayList<Repository>(repositories));
+        when(page.getIsLastPage()).thenReturn(last);
+        return page;
+    }
+
+    private static BuildStats stats(int failed, int successful) {
+        BuildStats stats = mock(BuildStats.class);
+        when(stats.getFailedCount()).thenReturn(failed);
+        when(stats.getSuccessfulCount()).thenReturn(successful);
+        return stats;
+    }
+}
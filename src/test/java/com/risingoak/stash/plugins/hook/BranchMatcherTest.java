@@ -0,0 +1,44 @@
+package com.risingoak.stash.plugins.hook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BranchMatcherTest {
+
+    @Test
+    public void shouldMatchExactBranchNames() {
+        BranchMatcher matcher = new BranchMatcher("main, refs/heads/develop");
+
+        assertTrue(matcher.matches("refs/heads/main"));
+        assertTrue(matcher.matches("refs/heads/develop"));
+        assertFalse(matcher.matches("refs/heads/main2"));
+        assertFalse(matcher.matches("refs/tags/main"));
+    }
+
+    @Test
+    public void shouldMatchSingleSegmentWildcards() {
+        BranchMatcher matcher = new BranchMatcher("release/*");
+
+        assertTrue(matcher.matches("refs/heads/release/1.0"));
+        assertFalse(matcher.matches("refs/heads/release/1.0/hotfix"));
+        assertFalse(matcher.matches("refs/heads/releases/1.0"));
+    }
+
+    @Test
+    public void shouldMatchMultiSegmentWildcards() {
+        BranchMatcher matcher = new BranchMatcher("release/**\nhotfix-*.x");
+
+        assertTrue(matcher.matches("refs/heads/release/1.0/hotfix"));
+        assertTrue(matcher.matches("refs/heads/hotfix-1.x"));
+        assertFalse(matcher.matches("refs/heads/hotfix-1.y"));
+    }
+
+    @Test
+    public void shouldMatchNothingWhenEmpty() {
+        assertTrue(BranchMatcher.NONE.isEmpty());
+        assertFalse(BranchMatcher.NONE.matches("refs/heads/master"));
+        assertFalse(new BranchMatcher(" , ").matches("refs/heads/master"));
+    }
+}
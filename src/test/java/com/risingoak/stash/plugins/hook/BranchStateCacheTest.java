@@ -0,0 +1,166 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.setting.Settings;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BranchStateCacheTest {
+
+    @Mock
+    private EventPublisher eventPublisher;
+    @Mock
+    private Repository repository;
+
+    private BranchStateCache cache;
+
+    @Before
+    public void setUp() {
+        when(repository.getId()).thenReturn(1);
+        cache = new BranchStateCache(eventPublisher, 2, 100, BranchStateCache.DEFAULT_MAX_AGE);
+    }
+
+    @Test
+    public void shouldReturnCachedVerdictForHead() {
+        AbstractRejectHook.BranchState verdict = new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL);
+        cache.put(repository, HookSettings.DEFAULT, "head", window("head", "parent"), verdict, cache.getGeneration());
+
+        assertSame(verdict, cache.getVerdict(repository, HookSettings.DEFAULT, "head"));
+        assertNull(cache.getVerdict(repository, HookSettings.DEFAULT, "parent"));
+    }
+
+    @Test
+    public void shouldOnlyForgetTheCommitWhoseStatusChanged() {
+        CommitWindow window = window("head", "parent");
+        window.states[0] = AbstractRejectHook.BuildState.INPROGRESS;
+        window.states[1] = AbstractRejectHook.BuildState.SUCCESSFUL;
+        cache.put(repository, HookSettings.DEFAULT, "head", window, new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL), cache.getGeneration());
+
+        cache.invalidateCommit("head");
+
+        assertNull(cache.getVerdict(repository, HookSettings.DEFAULT, "head"));
+        CommitWindow stale = cache.getWindow(repository, HookSettings.DEFAULT, "head");
+        assertNull(stale.states[0]);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, stale.states[1]);
+    }
+
+    @Test
+    public void shouldKeepStatesDecidedUnderDifferentPoliciesApart() {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.OPTIONAL_BUILDS, "nightly"));
+        HookSettings withOptionalBuilds = HookSettings.of(settings);
+        CommitWindow window = window("head");
+        window.policy = withOptionalBuilds.getAggregationPolicy();
+        window.states[0] = AbstractRejectHook.BuildState.SUCCESSFUL;
+        cache.rememberStates(window, cache.getGeneration());
+
+        CommitWindow byDefault = window("head");
+        cache.fillKnownStates(byDefault);
+        assertNull(byDefault.states[0]);
+
+        CommitWindow again = window("head");
+        again.policy = withOptionalBuilds.getAggregationPolicy();
+        cache.fillKnownStates(again);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, again.states[0]);
+
+        cache.invalidateCommit("head");
+        again.states[0] = null;
+        cache.fillKnownStates(again);
+        assertNull(again.states[0]);
+    }
+
+    @Test
+    public void shouldNotCacheResultsComputedAcrossAnInvalidation() {
+        long generation = cache.getGeneration();
+        cache.invalidateCommit("unrelated");
+        cache.put(repository, HookSettings.DEFAULT, "head", window("head"), new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "head"), generation);
+
+        assertNull(cache.getVerdict(repository, HookSettings.DEFAULT, "head"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedHeads() {
+        AbstractRejectHook.BranchState verdict = new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL);
+        cache.put(repository, HookSettings.DEFAULT, "a", window("a"), verdict, cache.getGeneration());
+        cache.put(repository, HookSettings.DEFAULT, "b", window("b"), verdict, cache.getGeneration());
+        cache.getVerdict(repository, HookSettings.DEFAULT, "a");
+        cache.put(repository, HookSettings.DEFAULT, "c", window("c"), verdict, cache.getGeneration());
+
+        assertSame(verdict, cache.getVerdict(repository, HookSettings.DEFAULT, "a"));
+        assertNull(cache.getVerdict(repository, HookSettings.DEFAULT, "b"));
+        assertSame(verdict, cache.getVerdict(repository, HookSettings.DEFAULT, "c"));
+    }
+
+    @Test
+    public void shouldExpireOldEntries() {
+        cache = new BranchStateCache(eventPublisher, 2, 100, -1);
+        cache.put(repository, HookSettings.DEFAULT, "head", window("head"), new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL), cache.getGeneration());
+
+        assertNull(cache.getVerdict(repository, HookSettings.DEFAULT, "head"));
+    }
+
+    @Test
+    public void shouldShareConcurrentLoadsOfTheSameHead() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final AbstractRejectHook.BranchState verdict = new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL);
+        final Callable<AbstractRejectHook.BranchState> loader = new Callable<AbstractRejectHook.BranchState>() {
+            @Override
+            public AbstractRejectHook.BranchState call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return verdict;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<AbstractRejectHook.BranchState> first = executor.submit(new Callable<AbstractRejectHook.BranchState>() {
+                @Override
+                public AbstractRejectHook.BranchState call() {
+                    return cache.load(repository, HookSettings.DEFAULT, "head", loader);
+                }
+            });
+            loading.await(10, TimeUnit.SECONDS);
+            Future<AbstractRejectHook.BranchState> second = executor.submit(new Callable<AbstractRejectHook.BranchState>() {
+                @Override
+                public AbstractRejectHook.BranchState call() {
+                    return cache.load(repository, HookSettings.DEFAULT, "head", loader);
+                }
+            });
+            Thread.sleep(100);
+            release.countDown();
+
+            assertSame(verdict, first.get(10, TimeUnit.SECONDS));
+            assertSame(verdict, second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CommitWindow window(String... ids) {
+        return new CommitWindow(ids, ids);
+    }
+}
@@ -0,0 +1,178 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.build.BuildStats;
+import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.repository.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.management.MBeanServerFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BranchStatePrewarmerTest {
+    private static final String MASTER = "refs/heads/master";
+    private static final String RELEASE = "refs/heads/release/1.0";
+    private static final String HOTFIX = "refs/heads/hotfix";
+
+    @Mock
+    private EventPublisher eventPublisher;
+    @Mock
+    private CommitService commitService;
+    @Mock
+    private BuildStatusService buildStatusService;
+    @Mock
+    private Repository repository;
+
+    private final Map<String, BuildStats> buildStats = new ConcurrentHashMap<String, BuildStats>();
+    private final CountDownLatch lookupStarted = new CountDownLatch(1);
+    private CountDownLatch lookupReleased = new CountDownLatch(0);
+    private BranchVerdictIndex index;
+    private StatusLookupExecutor lookupExecutor;
+
+    @Before
+    public void setUp() {
+        when(repository.getId()).thenReturn(1);
+        PluginSettingsFactory pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(mock(PluginSettings.class));
+        index = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory);
+        lookupExecutor = new StatusLookupExecutor(2, 10, 10000, true, true);
+        when(buildStatusService.getStats(anySetOf(String.class))).thenAnswer(new Answer<Map<String, BuildStats>>() {
+            @Override
+            public Map<String, BuildStats> answer(InvocationOnMock invocation) throws Throwable {
+                lookupStarted.countDown();
+                lookupReleased.await(5, TimeUnit.SECONDS);
+                Map<String, BuildStats> result = new HashMap<String, BuildStats>();
+                for (Object id : (Iterable<?>) invocation.getArguments()[0]) {
+                    if (buildStats.containsKey(id)) {
+                        result.put((String) id, buildStats.get(id));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        lookupExecutor.destroy();
+    }
+
+    @Test
+    public void shouldRecomputeIndexedBranchWhenABuildStatusIsSet() throws InterruptedException {
+        BranchStatePrewarmer prewarmer = prewarmer(true, 10);
+        indexBranch(MASTER, "head");
+        buildStats.put("head", failedStats());
+
+        prewarmer.onBuildStatusSet(buildStatusSet("head"));
+
+        assertEquals(1, prewarmer.getRequested());
+        waitForRecomputations(prewarmer, 1);
+        assertEquals(AbstractRejectHook.BuildState.FAILED, index.get(repository, MASTER, HookSettings.DEFAULT).verdict.state);
+        prewarmer.destroy();
+    }
+
+    @Test
+    public void shouldCoalesceQueuedRecomputationsAndDropThemWhenTheQueueIsFull() throws InterruptedException {
+        BranchStatePrewarmer prewarmer = prewarmer(true, 1);
+        indexBranch(MASTER, "head");
+        indexBranch(RELEASE, "release-head");
+        indexBranch(HOTFIX, "hotfix-head");
+        lookupReleased = new CountDownLatch(1);
+
+        prewarmer.onBuildStatusSet(buildStatusSet("head"));
+        lookupStarted.await(5, TimeUnit.SECONDS);
+        prewarmer.schedule(index.getIndexedRef(1, RELEASE), null);
+        prewarmer.schedule(index.getIndexedRef(1, RELEASE), "newer-release-head");
+        prewarmer.schedule(index.getIndexedRef(1, HOTFIX), null);
+
+        assertEquals(1, prewarmer.getQueueDepth());
+        assertEquals(1, prewarmer.getCoalesced());
+        assertEquals(1, prewarmer.getDropped());
+        lookupReleased.countDown();
+        waitForRecomputations(prewarmer, 1);
+        prewarmer.destroy();
+    }
+
+    @Test
+    public void shouldIgnoreEventsWhenDisabled() {
+        BranchStatePrewarmer prewarmer = prewarmer(false, 10);
+        indexBranch(MASTER, "head");
+
+        prewarmer.onBuildStatusSet(buildStatusSet("head"));
+
+        assertEquals(0, prewarmer.getRequested());
+        verifyZeroInteractions(buildStatusService);
+        prewarmer.destroy();
+    }
+
+    @Test
+    public void shouldOnlyRecomputeBranchesCheckedSinceStart() {
+        BranchStatePrewarmer prewarmer = prewarmer(true, 10);
+
+        prewarmer.onBuildStatusSet(buildStatusSet("head"));
+
+        assertEquals(0, prewarmer.getRequested());
+        assertNull(index.getIndexedRef(1, MASTER));
+        prewarmer.destroy();
+    }
+
+    private BranchStatePrewarmer prewarmer(boolean enabled, int queue) {
+        BranchStateCache cache = new BranchStateCache(eventPublisher);
+        HookMetrics hookMetrics = new HookMetrics(MBeanServerFactory.newMBeanServer());
+        return new BranchStatePrewarmer(new BranchStateResolver(commitService, buildStatusService, cache, lookupExecutor, index, hookMetrics),
+                cache, lookupExecutor, index, hookMetrics, eventPublisher, enabled, queue);
+    }
+
+    private void indexBranch(String refId, String head) {
+        CommitWindow window = new CommitWindow(new String[]{head}, new String[]{head});
+        window.states[0] = AbstractRejectHook.BuildState.SUCCESSFUL;
+        index.put(repository, refId, HookSettings.DEFAULT, head, window,
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+    }
+
+    private void waitForRecomputations(BranchStatePrewarmer prewarmer, int recomputations) throws InterruptedException {
+        verify(buildStatusService, timeout(5000)).getStats(anySetOf(String.class));
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (prewarmer.getRecomputations() < recomputations && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        assertEquals(recomputations, prewarmer.getRecomputations());
+    }
+
+    private BuildStatusSetEvent buildStatusSet(String changesetId) {
+        BuildStatusSetEvent event = mock(BuildStatusSetEvent.class);
+        when(event.getChangesetId()).thenReturn(changesetId);
+        return event;
+    }
+
+    private BuildStats failedStats() {
+        BuildStats stats = mock(BuildStats.class);
+        when(stats.getFailedCount()).thenReturn(1);
+        return stats;
+    }
+}
@@ -0,0 +1,204 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.event.hook.RepositoryHookDisabledEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.setting.Settings;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BranchVerdictIndexTest {
+    private static final String REF = "refs/heads/master";
+
+    @Mock
+    private EventPublisher eventPublisher;
+    @Mock
+    private PluginSettingsFactory pluginSettingsFactory;
+    @Mock
+    private PluginSettings pluginSettings;
+    @Mock
+    private Repository repository;
+
+    private BranchVerdictIndex index;
+
+    @Before
+    public void setUp() {
+        when(repository.getId()).thenReturn(1);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(pluginSettings);
+        index = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory);
+    }
+
+    @Test
+    public void shouldOnlyKeepCommitsDownToTheNewestDecisiveOne() {
+        AbstractRejectHook.BranchState verdict = new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL);
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(null, AbstractRejectHook.BuildState.SUCCESSFUL, AbstractRejectHook.BuildState.FAILED), verdict);
+
+        BranchVerdictIndex.IndexedBranch indexed = index.get(repository, REF, HookSettings.DEFAULT);
+        assertEquals("head", indexed.head);
+        assertSame(verdict, indexed.verdict);
+        assertArrayEquals(new String[]{"c0", "c1"}, indexed.window.ids);
+        assertTrue(indexed.isDecisive());
+    }
+
+    @Test
+    public void shouldForgetVerdictWhenAnIndexedCommitChanges() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.INPROGRESS, AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+
+        index.invalidateCommit("c0");
+
+        BranchVerdictIndex.IndexedBranch indexed = index.get(repository, REF, HookSettings.DEFAULT);
+        assertNull(indexed.verdict);
+        assertNull(indexed.window.states[0]);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, indexed.window.states[1]);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReloadPersistedCommitsWithoutTheirStates() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+        ArgumentCaptor<Object> stored = ArgumentCaptor.forClass(Object.class);
+        verify(pluginSettings, timeout(5000)).put(eq(BranchVerdictIndex.SETTINGS_KEY + 1), stored.capture());
+        when(pluginSettings.get(BranchVerdictIndex.SETTINGS_KEY + 1)).thenReturn(stored.getValue());
+
+        BranchVerdictIndex.IndexedBranch indexed = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory).get(repository, REF, HookSettings.DEFAULT);
+        assertEquals("head", indexed.head);
+        assertNull(indexed.verdict);
+        assertArrayEquals(new String[]{"c0"}, indexed.window.ids);
+        assertNull(indexed.window.states[0]);
+    }
+
+    @Test
+    public void shouldForgetADeletedRepository() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+
+        index.onRepositoryDeleted(new RepositoryDeletedEvent(this, repository));
+
+        assertNull(index.get(repository, REF, HookSettings.DEFAULT));
+        assertTrue(index.invalidateCommit("c0").isEmpty());
+        verify(pluginSettings, timeout(5000)).remove(BranchVerdictIndex.SETTINGS_KEY + 1);
+    }
+
+    @Test
+    public void shouldForgetARepositoryWhenTheHookIsDisabled() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+
+        index.onHookDisabled(new RepositoryHookDisabledEvent(this, repository, "other-plugin:hook"));
+        assertNotNull(index.get(repository, REF, HookSettings.DEFAULT));
+
+        index.onHookDisabled(new RepositoryHookDisabledEvent(this, repository, AbstractRejectHook.PUSH_HOOK_KEY));
+        assertNull(index.get(repository, REF, HookSettings.DEFAULT));
+        verify(pluginSettings, timeout(5000)).remove(BranchVerdictIndex.SETTINGS_KEY + 1);
+    }
+
+    @Test
+    public void shouldOnlyPersistBranchesThatChanged() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+        verify(pluginSettings, timeout(5000)).put(eq(BranchVerdictIndex.SETTINGS_KEY + 1), any());
+
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+        index.put(repository, REF, HookSettings.DEFAULT, "new-head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+
+        // the writes are queued in order, so the unchanged branch would have been written before the moved one
+        verify(pluginSettings, timeout(5000).times(2)).put(eq(BranchVerdictIndex.SETTINGS_KEY + 1), any());
+        verify(pluginSettings, times(2)).put(eq(BranchVerdictIndex.SETTINGS_KEY + 1), any());
+    }
+
+    @Test
+    public void shouldForgetADeletedBranch() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+        verify(pluginSettings, timeout(5000)).put(eq(BranchVerdictIndex.SETTINGS_KEY + 1), any());
+
+        index.onRefsChanged(refsChanged(RefChangeType.UPDATE, REF));
+        assertNotNull(index.get(repository, REF, HookSettings.DEFAULT));
+
+        index.onRefsChanged(refsChanged(RefChangeType.DELETE, REF));
+        assertNull(index.get(repository, REF, HookSettings.DEFAULT));
+        assertTrue(index.invalidateCommit("c0").isEmpty());
+        verify(pluginSettings, timeout(5000)).put(BranchVerdictIndex.SETTINGS_KEY + 1, Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void shouldForgetADeletedBranchThatIsOnlyPersisted() {
+        Map<String, String> stored = new HashMap<String, String>();
+        stored.put(REF, "settings head c0/c0/SUCCESSFUL");
+        stored.put("refs/heads/release", "settings head c0/c0/SUCCESSFUL");
+        when(pluginSettings.get(BranchVerdictIndex.SETTINGS_KEY + 1)).thenReturn(stored);
+
+        index.onRefsChanged(refsChanged(RefChangeType.DELETE, REF));
+
+        verify(pluginSettings, timeout(5000)).put(BranchVerdictIndex.SETTINGS_KEY + 1,
+                Collections.singletonMap("refs/heads/release", "settings head c0/c0/SUCCESSFUL"));
+    }
+
+    @Test
+    public void shouldIgnoreEntriesIndexedWithOtherSettings() {
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(AbstractRejectHook.BuildState.SUCCESSFUL),
+                new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL));
+
+        HookSettings adaptive = HookSettings.of(settings(HookSettings.ADAPTIVE, true));
+        assertNull(index.get(repository, REF, adaptive));
+    }
+
+    private RepositoryRefsChangedEvent refsChanged(RefChangeType type, String refId) {
+        RefChange refChange = mock(RefChange.class);
+        when(refChange.getType()).thenReturn(type);
+        when(refChange.getRefId()).thenReturn(refId);
+        RepositoryRefsChangedEvent event = mock(RepositoryRefsChangedEvent.class);
+        when(event.getRepository()).thenReturn(repository);
+        when(event.getRefChanges()).thenReturn(Collections.singletonList(refChange));
+        return event;
+    }
+
+    private Settings settings(String key, Object value) {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.singletonMap(key, value));
+        return settings;
+    }
+
+    private CommitWindow window(AbstractRejectHook.BuildState... states) {
+        String[] ids = new String[states.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "c" + i;
+        }
+        CommitWindow window = new CommitWindow(ids, ids);
+        System.arraycopy(states, 0, window.states, 0, states.length);
+        return window;
+    }
+}
@@ -1,29 +1,44 @@
 package com.risingoak.stash.plugins.hook;
 
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.stash.build.BuildStatus;
+import com.atlassian.stash.build.BuildStats;
 import com.atlassian.stash.build.BuildStatusService;
+import com.atlassian.stash.build.BuildStatusSetEvent;
+import com.atlassian.stash.commit.ChangesetsBetweenRequest;
 import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.MinimalChangeset;
 import com.atlassian.stash.commit.CommitService;
 import com.atlassian.stash.hook.HookResponse;
 import com.atlassian.stash.hook.repository.RepositoryHookContext;
 import com.atlassian.stash.internal.build.InternalBuildStatus;
 import com.atlassian.stash.repository.*;
+import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.util.Page;
 import com.atlassian.stash.util.PageRequest;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import javax.management.MBeanServerFactory;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.isA;
@@ -33,6 +48,7 @@ import static org.mockito.Mockito.*;
 public class BrokenBuildHookTest {
 
     public static final String DEFAULT_BRANCH_REF = "refs/heads/master";
+    private static final String ZERO_HASH = "0000000000000000000000000000000000000000";
 
     @Mock
     private RefService repositoryMetadataService;
@@ -41,9 +57,19 @@ public class BrokenBuildHookTest {
     @Mock
     private CommitService historyService;
 
-    @InjectMocks
+    @Mock
+    private EventPublisher eventPublisher;
+
+    private final HookMetrics hookMetrics = new HookMetrics(MBeanServerFactory.newMBeanServer());
+    private final List<StatusLookupExecutor> lookupExecutors = new ArrayList<StatusLookupExecutor>();
+
     private BrokenBuildHook brokenBuildHook;
 
+    private final Map<String, BuildStats> buildStats = new HashMap<String, BuildStats>();
+    private final List<String> requestedStats = new ArrayList<String>();
+    private List<Changeset> history;
+    private volatile long statsDelay;
+
     @Mock
     private RepositoryHookContext repositoryHookContext;
     @Mock
@@ -55,10 +81,33 @@ public class BrokenBuildHookTest {
 
     @Before
     public void setUp() {
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, new BranchStateCache(eventPublisher), lookupExecutor(), verdictIndex(), hookMetrics);
         when(repositoryHookContext.getRepository()).thenReturn(repository);
         when(repositoryMetadataService.getDefaultBranch(isA(Repository.class))).thenReturn(branch);
         when(branch.getId()).thenReturn(DEFAULT_BRANCH_REF);
         when(hookResponse.err()).thenReturn(new PrintWriter(new StringWriter()));
+        when(hookResponse.out()).thenReturn(new PrintWriter(new StringWriter()));
+        when(buildStatusService.getStats(anySetOf(String.class))).thenAnswer(new Answer<Map<String, BuildStats>>() {
+            @Override
+            public Map<String, BuildStats> answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(statsDelay);
+                Map<String, BuildStats> result = new HashMap<String, BuildStats>();
+                for (Object id : (Iterable<?>) invocation.getArguments()[0]) {
+                    requestedStats.add((String) id);
+                    if (buildStats.containsKey(id)) {
+                        result.put((String) id, buildStats.get(id));
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        for (StatusLookupExecutor lookupExecutor : lookupExecutors) {
+            lookupExecutor.destroy();
+        }
     }
 
     @Test
@@ -87,20 +136,42 @@ public class BrokenBuildHookTest {
         boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
         assertTrue("hook incorrectly rejected push", response);
         verify(buildStatusService).findAll(refChange.getToHash());
-        verify(buildStatusService).findAll(refChange.getFromHash());
+        verify(buildStatusService).getStats(anySetOf(String.class));
+        assertEquals(Arrays.asList(refChange.getFromHash()), requestedStats);
     }
 
     @Test
     public void shouldRejectPushIfMostRecentBuildFailed() {
         SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
-        Changeset topChangesetInPush = mock(Changeset.class);
-        when(historyService.getChangeset(repository, refChange.getToHash())).thenReturn(topChangesetInPush);
-        when(topChangesetInPush.getMessage()).thenReturn("");
+        mockPushedCommitMessages("");
 
         boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
         assertFalse("hook incorrectly allowed push", response);
         verify(buildStatusService).findAll(refChange.getToHash());
-        verify(buildStatusService).findAll(refChange.getFromHash());
+        verify(buildStatusService).getStats(anySetOf(String.class));
+        assertEquals(Arrays.asList(refChange.getFromHash()), requestedStats);
+    }
+
+    @Test
+    public void shouldTraceTheCommitsARejectedPushWasDecidedOn() {
+        DecisionTraceLog traceLog = new DecisionTraceLog(16, null, DecisionTraceLog.DEFAULT_MAX_FILE_SIZE, 1);
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, new BranchStateCache(eventPublisher),
+                lookupExecutor(), verdictIndex(), hookMetrics, null, traceLog);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.FAILED);
+        mockPushedCommitMessages("");
+
+        assertFalse(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        List<DecisionTrace> traces = traceLog.getRecent(repository.getId(), 10);
+        assertEquals(1, traces.size());
+        DecisionTrace trace = traces.get(0);
+        assertEquals(DecisionTrace.PUSH, trace.kind);
+        assertEquals(refChange.getFromHash(), trace.head);
+        assertEquals(AbstractRejectHook.BuildState.UNDEFINED, trace.pushedState);
+        assertEquals(AbstractRejectHook.BuildState.FAILED, trace.verdict);
+        assertFalse(trace.accepted);
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-1"), Arrays.asList(trace.commits));
+        assertEquals(Arrays.asList(AbstractRejectHook.BuildState.INPROGRESS, AbstractRejectHook.BuildState.FAILED), Arrays.asList(trace.states));
     }
 
     @Test
@@ -114,9 +185,7 @@ public class BrokenBuildHookTest {
     @Test
     public void shouldRejectPushIfMostRecentNonPendingBuildFailed() {
         SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.INPROGRESS, BuildStatus.State.FAILED);
-        Changeset topChangesetInPush = mock(Changeset.class);
-        when(historyService.getChangeset(repository, refChange.getToHash())).thenReturn(topChangesetInPush);
-        when(topChangesetInPush.getMessage()).thenReturn("");
+        mockPushedCommitMessages("");
 
         boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
         assertFalse("hook incorrectly allowed push", response);
@@ -130,6 +199,80 @@ public class BrokenBuildHookTest {
         assertFalse("hook incorrectly allowed push", response);
     }
 
+    @Test
+    public void shouldWaitForPendingBuildsUntilABuildStatusIsSet() throws InterruptedException {
+        StringWriter out = new StringWriter();
+        when(hookResponse.out()).thenReturn(new PrintWriter(out));
+        configure(HookSettings.MAX_PENDING_WAIT, "30");
+        final BranchStateCache cache = new BranchStateCache(eventPublisher);
+        final BranchVerdictIndex index = verdictIndex();
+        final PendingBuildWaiter waiter = new PendingBuildWaiter(eventPublisher, 5);
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, cache, lookupExecutor(),
+                index, hookMetrics, waiter);
+        final SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS);
+        final BuildStats successful = mockBuildStats(BuildStatus.State.SUCCESSFUL);
+        final BuildStatusSetEvent event = mock(BuildStatusSetEvent.class);
+        when(event.getChangesetId()).thenReturn(refChange.getFromHash());
+        Thread build = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (waiter.getWaiters() == 0) {
+                        Thread.sleep(10);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                buildStats.put(refChange.getFromHash(), successful);
+                cache.onBuildStatusSet(event);
+                index.onBuildStatusSet(event);
+                waiter.onBuildStatusSet(event);
+            }
+        };
+        build.start();
+
+        long start = System.currentTimeMillis();
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        build.join();
+        assertTrue("hook did not accept the push once the pending build passed", response);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(out.toString().contains("waiting up to 30 seconds"));
+        assertEquals(0, waiter.getWaiters());
+    }
+
+    @Test
+    public void shouldWaitNoLongerThanTheServerAllows() {
+        StringWriter out = new StringWriter();
+        when(hookResponse.out()).thenReturn(new PrintWriter(out));
+        configure(HookSettings.MAX_PENDING_WAIT, "3600");
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService,
+                new BranchStateCache(eventPublisher), lookupExecutor(), verdictIndex(), hookMetrics,
+                new PendingBuildWaiter(eventPublisher, 5, 1));
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS);
+
+        long start = System.currentTimeMillis();
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push while its builds were still running", response);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(out.toString().contains("waiting up to 1 seconds"));
+    }
+
+    @Test
+    public void shouldRejectPendingBuildsStraightAwayWhenTooManyPushesWait() {
+        StringWriter out = new StringWriter();
+        when(hookResponse.out()).thenReturn(new PrintWriter(out));
+        configure(HookSettings.MAX_PENDING_WAIT, "30");
+        BranchStateCache cache = new BranchStateCache(eventPublisher);
+        BranchVerdictIndex index = verdictIndex();
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, cache, lookupExecutor(),
+                index, hookMetrics, new PendingBuildWaiter(eventPublisher, 0));
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push", response);
+        assertTrue(out.toString().contains("Too many pushes are already waiting"));
+    }
+
     @Test
     public void shouldAllowPushIfNoBuildInformationIsPresent() {
         SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(null, null);
@@ -138,6 +281,428 @@ public class BrokenBuildHookTest {
         assertTrue("hook incorrectly rejected push", response);
     }
 
+    @Test
+    public void shouldAnswerRepeatedPushesToTheSameHeadFromTheCache() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        verify(historyService, times(1)).getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class));
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-1"), requestedStats);
+    }
+
+    @Test
+    public void shouldRecordDecisionMetricsPerRepository() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+        assertEquals(2, metrics.getDecisions());
+        assertEquals(2, metrics.getSuccessfulVerdicts());
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(1, metrics.getCacheMisses());
+        assertEquals(2, metrics.getCommitsInspected());
+        assertEquals(1, hookMetrics.getLookups().getGetChangesetsCalls());
+        assertEquals(1, hookMetrics.getLookups().getGetStatsCalls());
+    }
+
+    @Test
+    public void shouldOnlyLookUpTheCommitWhoseBuildStatusChanged() {
+        BranchStateCache cache = new BranchStateCache(eventPublisher);
+        BranchVerdictIndex index = verdictIndex();
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, cache, lookupExecutor(), index, hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL);
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        setBuildStateForHash(refChange.getFromHash(), BuildStatus.State.FAILED);
+        cache.invalidateCommit(refChange.getFromHash());
+        index.invalidateCommit(refChange.getFromHash());
+        mockPushedCommitMessages("");
+
+        assertFalse(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        verify(historyService, times(1)).getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class));
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-1", refChange.getFromHash()), requestedStats);
+    }
+
+    @Test
+    public void shouldWalkPastTheIndexedCommitsWhenTheDecisiveOneIsRebuilt() {
+        BranchStateCache cache = new BranchStateCache(eventPublisher);
+        BranchVerdictIndex index = verdictIndex();
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, cache, lookupExecutor(), index, hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.SUCCESSFUL, BuildStatus.State.SUCCESSFUL);
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        setBuildStateForHash("hash-1", BuildStatus.State.INPROGRESS);
+        cache.invalidateCommit("hash-1");
+        index.invalidateCommit("hash-1");
+
+        assertTrue("hook rejected push although an older build decides the branch", brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        verify(historyService, times(2)).getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class));
+    }
+
+    @Test
+    public void shouldLookUpTheWholeWindowInOneBatch() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, null, BuildStatus.State.INPROGRESS, BuildStatus.State.FAILED);
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push", response);
+        verify(buildStatusService).getStats(anySetOf(String.class));
+        verify(buildStatusService, never()).findAll(refChange.getFromHash());
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-1", "hash-2", "hash-3"), requestedStats);
+    }
+
+    @Test
+    public void shouldFallBackToPerCommitLookupsWithoutBulkSupport() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, null, BuildStatus.State.SUCCESSFUL);
+        Page emptyPage = emptyBuildStatusList();
+        reset(buildStatusService);
+        when(buildStatusService.getStats(anySetOf(String.class))).thenThrow(new UnsupportedOperationException());
+        when(buildStatusService.findAll(refChange.getToHash())).thenReturn(emptyPage);
+        setBuildStateForHash(refChange.getFromHash(), BuildStatus.State.INPROGRESS);
+        setBuildStateForHash("hash-1", null);
+        setBuildStateForHash("hash-2", BuildStatus.State.SUCCESSFUL);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook incorrectly rejected push", response);
+        verify(buildStatusService).findAll(refChange.getFromHash());
+        verify(buildStatusService).findAll("hash-1");
+        verify(buildStatusService).findAll("hash-2");
+    }
+
+    @Test
+    public void shouldApplyTimeoutPolicyWhenLookupsRunOutOfTime() {
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService,
+                new BranchStateCache(eventPublisher), lookupExecutor(0, false, false), verdictIndex(), hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.SUCCESSFUL);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push after running out of time with fail-closed policy", response);
+    }
+
+    @Test
+    public void shouldLookUpBuildsForAsLongAsTheRepositoryBudgetAllows() {
+        configure(HookSettings.MAX_DECISION_TIME, "5000");
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService,
+                new BranchStateCache(eventPublisher), lookupExecutor(0, false, false), verdictIndex(), hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.SUCCESSFUL);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook gave up on the lookups at the server timeout rather than the repository budget", response);
+        assertEquals(0, hookMetrics.forRepository(repository).getTimeouts());
+    }
+
+    @Test
+    public void shouldUseLastKnownVerdictWhenTheDecisionRunsOutOfTime() {
+        StringWriter out = new StringWriter();
+        when(hookResponse.out()).thenReturn(new PrintWriter(out));
+        configure(HookSettings.MAX_DECISION_TIME, "200");
+        BranchStateCache cache = new BranchStateCache(eventPublisher);
+        BranchVerdictIndex index = verdictIndex();
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService, cache, lookupExecutor(), index, hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.SUCCESSFUL);
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        cache.invalidateCommit(refChange.getFromHash());
+        index.invalidateCommit(refChange.getFromHash());
+        statsDelay = 2000;
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook did not use the last known verdict", response);
+        assertTrue(out.toString().contains("using the last known result"));
+        assertEquals(1, hookMetrics.forRepository(repository).getStaleVerdicts());
+    }
+
+    @Test
+    public void shouldApplyRepositoryTimeoutPolicyWithoutALastKnownVerdict() {
+        StringWriter err = new StringWriter();
+        when(hookResponse.err()).thenReturn(new PrintWriter(err));
+        configure(HookSettings.MAX_DECISION_TIME, "100", HookSettings.TIMEOUT_POLICY, HookSettings.FAIL_CLOSED);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.SUCCESSFUL);
+        statsDelay = 2000;
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push after running out of time with fail-closed policy", response);
+        assertTrue(err.toString().contains("could not be checked in time"));
+        assertEquals(1, hookMetrics.forRepository(repository).getTimeouts());
+    }
+
+    @Test
+    public void shouldLetRepositoryFailOpenWhenTheServerFailsClosed() {
+        StringWriter out = new StringWriter();
+        when(hookResponse.out()).thenReturn(new PrintWriter(out));
+        configure(HookSettings.TIMEOUT_POLICY, HookSettings.FAIL_OPEN);
+        brokenBuildHook = new BrokenBuildHook(repositoryMetadataService, buildStatusService, historyService,
+                new BranchStateCache(eventPublisher), lookupExecutor(0, false, false), verdictIndex(), hookMetrics);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook incorrectly rejected push after running out of time with fail-open policy", response);
+        assertTrue(out.toString().contains("allowing the push"));
+    }
+
+    @Test
+    public void shouldPageThroughHistoryUntilADecisiveBuildInAdaptiveMode() {
+        Settings settings = mock(Settings.class);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.ADAPTIVE, true);
+        values.put(HookSettings.COMMITS_TO_INSPECT, "2");
+        when(settings.asMap()).thenReturn(values);
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(null, null, BuildStatus.State.INPROGRESS, BuildStatus.State.FAILED, BuildStatus.State.SUCCESSFUL);
+        when(historyService.getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class))).thenAnswer(new Answer<Page<Changeset>>() {
+            @Override
+            public Page<Changeset> answer(InvocationOnMock invocation) throws Throwable {
+                PageRequest request = (PageRequest) invocation.getArguments()[3];
+                int end = Math.min(history.size(), request.getStart() + request.getLimit());
+                Page<Changeset> page = mock(Page.class);
+                when(page.getValues()).thenReturn(history.subList(request.getStart(), end));
+                when(page.getIsLastPage()).thenReturn(end == history.size());
+                return page;
+            }
+        });
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push", response);
+        verify(historyService, times(2)).getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class));
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-1", "hash-2", "hash-3", "hash-4"), requestedStats);
+    }
+
+    @Test
+    public void shouldOnlyInspectFirstParentHistoryInFirstParentMode() {
+        configure(HookSettings.FIRST_PARENT, "true");
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(null, BuildStatus.State.FAILED, BuildStatus.State.SUCCESSFUL);
+        // the head merges hash-1, built and broken on its own branch, into hash-2
+        MinimalChangeset mainline = mock(MinimalChangeset.class);
+        when(mainline.getId()).thenReturn("hash-2");
+        MinimalChangeset merged = mock(MinimalChangeset.class);
+        when(merged.getId()).thenReturn("hash-1");
+        when(history.get(0).getParents()).thenReturn(Arrays.asList(mainline, merged));
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook incorrectly rejected push because of a merged-in build", response);
+        assertEquals(Arrays.asList(refChange.getFromHash(), "hash-2"), requestedStats);
+    }
+
+    @Test
+    public void shouldOnlyFoldAsManyAncestorCommitsAsTheLimitLeavesRoom() {
+        configure(HookSettings.FIRST_PARENT, "true", HookSettings.COMMITS_TO_INSPECT, "3");
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(null, null, null);
+        mockFirstParents(history);
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        // the next push starts from a new head on top of the one just inspected
+        List<Changeset> moved = new ArrayList<Changeset>();
+        moved.add(mockChangeset("newhead"));
+        moved.addAll(history);
+        mockFirstParents(moved);
+        Page changesetsPage = mock(Page.class);
+        when(changesetsPage.getValues()).thenReturn(moved);
+        when(historyService.getChangesets(eq(repository), eq("newhead"), anyString(), isA(PageRequest.class))).thenReturn(changesetsPage);
+        SimpleRefChange next = new SimpleRefChange.Builder().refId(DEFAULT_BRANCH_REF).fromHash("newhead").toHash("tohash")
+                .type(RefChangeType.UPDATE).build();
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(next), hookResponse));
+
+        assertEquals(6, hookMetrics.forRepository(repository).getCommitsInspected());
+    }
+
+    @Test
+    public void shouldRejectPushToProtectedReleaseBranchIfMostRecentBuildFailed() {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.PROTECTED_BRANCHES, "main, release/*"));
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+        refChange = getRefChangeFor("refs/heads/release/2.0");
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(getRefChangeFor("refs/heads/feature"), refChange), hookResponse);
+        assertFalse("hook incorrectly allowed push to protected branch", response);
+    }
+
+    @Test
+    public void shouldAllowANewProtectedBranchWithoutInspectingHistory() {
+        protectBranches("release/*");
+        SimpleRefChange refChange = new SimpleRefChange.Builder().refId("refs/heads/release/2.0").fromHash(ZERO_HASH)
+                .toHash("tohash").type(RefChangeType.ADD).build();
+        when(buildStatusService.findAll("tohash")).thenReturn(emptyBuildStatusList());
+
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        verify(historyService, never()).getChangesets(any(Repository.class), eq(ZERO_HASH), anyString(), any(PageRequest.class));
+        verify(buildStatusService, never()).findAll(ZERO_HASH);
+    }
+
+    @Test
+    public void shouldRejectANewProtectedBranchWhosePushedCommitFailed() {
+        protectBranches("release/*");
+        SimpleRefChange refChange = new SimpleRefChange.Builder().refId("refs/heads/release/2.0").fromHash(ZERO_HASH)
+                .toHash("tohash").type(RefChangeType.ADD).build();
+        setBuildStateForHash("tohash", BuildStatus.State.FAILED);
+
+        assertFalse(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+    }
+
+    @Test
+    public void shouldIgnoreDeletionsOfProtectedBranches() {
+        protectBranches("release/*");
+        setBuildStateForHash("fromhash", BuildStatus.State.FAILED);
+        SimpleRefChange refChange = new SimpleRefChange.Builder().refId("refs/heads/release/1.0").fromHash("fromhash")
+                .toHash(ZERO_HASH).type(RefChangeType.DELETE).build();
+
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+        verify(buildStatusService, never()).findAll(anyString());
+        verify(historyService, never()).getChangesetsBetween(any(ChangesetsBetweenRequest.class), any(PageRequest.class));
+    }
+
+    @Test
+    public void shouldOnlyInspectNewCommitsOnTopOfIndexedHead() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.SUCCESSFUL);
+        assertTrue(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse));
+
+        SimpleRefChange nextRefChange = new SimpleRefChange.Builder().refId(DEFAULT_BRANCH_REF).fromHash("newhash").toHash("tohash").type(RefChangeType.UPDATE).build();
+        Changeset newChangeset = mockChangeset("newhash");
+        MinimalChangeset parent = mock(MinimalChangeset.class);
+        when(parent.getId()).thenReturn(refChange.getFromHash());
+        when(newChangeset.getParents()).thenReturn(Collections.singletonList(parent));
+        Page newChangesets = mock(Page.class);
+        when(newChangesets.getValues()).thenReturn(Collections.singletonList(newChangeset));
+        when(newChangesets.getIsLastPage()).thenReturn(true);
+        when(historyService.getChangesetsBetween(isA(ChangesetsBetweenRequest.class), isA(PageRequest.class))).thenReturn(newChangesets);
+        setBuildStateForHash("newhash", BuildStatus.State.FAILED);
+
+        assertFalse(brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(nextRefChange), hookResponse));
+        verify(historyService, never()).getChangesets(eq(repository), eq("newhash"), anyString(), isA(PageRequest.class));
+        assertEquals(Arrays.asList(refChange.getFromHash(), "newhash"), requestedStats);
+    }
+
+    @Test
+    public void shouldAllowPushWithAFixDeepInsideTheBatch() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+        when(history.get(0).getDisplayId()).thenReturn("a1b2c3d4e5f");
+        String[] messages = new String[150];
+        Arrays.fill(messages, "Some change");
+        messages[0] = "Merge branch 'fix-build'";
+        messages[120] = "Repair the flaky test\n\nFixes-build: a1b2c3d";
+        mockPushedCommitMessages(messages);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook incorrectly rejected push containing a fix", response);
+        verify(historyService, times(2)).getChangesetsBetween(isA(ChangesetsBetweenRequest.class), isA(PageRequest.class));
+        verify(historyService, never()).getChangeset(any(Repository.class), anyString());
+    }
+
+    @Test
+    public void shouldAcceptFullHashInFixClaim() {
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+        when(history.get(0).getDisplayId()).thenReturn("a1b2c3d4e5f");
+        mockPushedCommitMessages("fixes a1b2c3d4e5f60718293a4b5c6d7e8f9012345678");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertTrue("hook incorrectly rejected push containing a fix", response);
+    }
+
+    @Test
+    public void shouldStopLookingForAFixAfterTheConfiguredNumberOfCommits() {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.MAX_FIX_COMMITS, "50"));
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+        SimpleRefChange refChange = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+        when(history.get(0).getDisplayId()).thenReturn("a1b2c3d4e5f");
+        String[] messages = new String[150];
+        Arrays.fill(messages, "Some change");
+        messages[120] = "fixes a1b2c3d";
+        mockPushedCommitMessages(messages);
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(refChange), hookResponse);
+        assertFalse("hook looked past the configured number of commits", response);
+        verify(historyService, times(1)).getChangesetsBetween(isA(ChangesetsBetweenRequest.class), isA(PageRequest.class));
+    }
+
+    @Test
+    public void shouldLookUpCommitsSharedByProtectedBranchesOnce() {
+        StringWriter err = new StringWriter();
+        when(hookResponse.err()).thenReturn(new PrintWriter(err));
+        protectBranches("release/*");
+        SimpleRefChange master = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.INPROGRESS, BuildStatus.State.FAILED);
+        SimpleRefChange release = mockReleaseBranchOnTopOf(history.get(1));
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(master, release), hookResponse);
+        assertFalse("hook incorrectly allowed push", response);
+        verify(repositoryMetadataService, times(1)).getDefaultBranch(repository);
+        verify(buildStatusService, times(1)).getStats(anySetOf(String.class));
+        verify(buildStatusService, never()).findAll(anyString());
+        assertEquals(Arrays.asList("tohash", "releasetohash", "fromhash", "hash-1", "releasehash"), requestedStats);
+        assertTrue(err.toString().contains("Branch " + DEFAULT_BRANCH_REF + " has at least 1 failed build"));
+        assertTrue(err.toString().contains("Branch refs/heads/release/1.0 has at least 1 failed build"));
+    }
+
+    @Test
+    public void shouldRejectMultiRefPushIfAnyProtectedBranchIsBroken() {
+        StringWriter err = new StringWriter();
+        when(hookResponse.err()).thenReturn(new PrintWriter(err));
+        protectBranches("release/*");
+        SimpleRefChange master = mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State.FAILED);
+        Changeset successful = mockChangeset("hash-release");
+        setBuildStateForHash("hash-release", BuildStatus.State.SUCCESSFUL);
+        SimpleRefChange release = mockReleaseBranchOnTopOf(successful);
+        mockPushedCommitMessages("");
+
+        boolean response = brokenBuildHook.onReceive(repositoryHookContext, Arrays.<RefChange>asList(master, release), hookResponse);
+        assertFalse("hook incorrectly allowed push", response);
+        assertTrue(err.toString().contains("Branch " + DEFAULT_BRANCH_REF + " has at least 1 failed build"));
+        assertFalse(err.toString().contains("refs/heads/release/1.0"));
+    }
+
+    private void configure(String... keysAndValues) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            values.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+    }
+
+    private void protectBranches(String patterns) {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.PROTECTED_BRANCHES, patterns));
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+    }
+
+    /**
+     * Mocks a push to {@code refs/heads/release/1.0} whose head is an unbuilt commit on top of {@code parent}.
+     */
+    private SimpleRefChange mockReleaseBranchOnTopOf(Changeset parent) {
+        SimpleRefChange refChange = new SimpleRefChange.Builder().refId("refs/heads/release/1.0").fromHash("releasehash")
+                .toHash("releasetohash").type(RefChangeType.UPDATE).build();
+        when(buildStatusService.findAll("releasetohash")).thenReturn(emptyBuildStatusList());
+        Page changesetsPage = mock(Page.class);
+        when(changesetsPage.getValues()).thenReturn(Arrays.asList(mockChangeset("releasehash"), parent));
+        when(historyService.getChangesets(eq(repository), eq("releasehash"), anyString(), isA(PageRequest.class))).thenReturn(changesetsPage);
+        return refChange;
+    }
+
+    private StatusLookupExecutor lookupExecutor() {
+        return lookupExecutor(10000, true, true);
+    }
+
+    private StatusLookupExecutor lookupExecutor(long timeout, boolean failOpen, boolean bulkLookups) {
+        StatusLookupExecutor lookupExecutor = new StatusLookupExecutor(2, 10, timeout, failOpen, bulkLookups);
+        lookupExecutors.add(lookupExecutor);
+        return lookupExecutor;
+    }
+
+    private BranchVerdictIndex verdictIndex() {
+        PluginSettingsFactory pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(mock(PluginSettings.class));
+        return new BranchVerdictIndex(eventPublisher, pluginSettingsFactory);
+    }
+
     private SimpleRefChange mockSimpleRefChangeWithPriorBuildStates(BuildStatus.State... states) {
         SimpleRefChange refChange = getRefChangeFor(DEFAULT_BRANCH_REF);
 
@@ -161,6 +726,7 @@ public class BrokenBuildHookTest {
         }
 
 
+        history = changesets;
         Page changesetsPage = mock(Page.class);
         when(changesetsPage.getValues()).thenReturn(changesets);
         when(historyService.getChangesets(eq(repository), eq(refChange.getFromHash()), anyString(), isA(PageRequest.class))).thenReturn(changesetsPage);
@@ -171,6 +737,46 @@ public class BrokenBuildHookTest {
     private void setBuildStateForHash(String hash, BuildStatus.State state) {
         Page page = mockBuildStatusList(state);
         when(buildStatusService.findAll(hash)).thenReturn(page);
+        buildStats.put(hash, mockBuildStats(state));
+    }
+
+    private BuildStats mockBuildStats(BuildStatus.State state) {
+        BuildStats stats = mock(BuildStats.class);
+        when(stats.getSuccessfulCount()).thenReturn(state == BuildStatus.State.SUCCESSFUL ? 1 : 0);
+        when(stats.getInProgressCount()).thenReturn(state == BuildStatus.State.INPROGRESS ? 1 : 0);
+        when(stats.getFailedCount()).thenReturn(state == BuildStatus.State.FAILED ? 1 : 0);
+        return stats;
+    }
+
+    private void mockPushedCommitMessages(String... messages) {
+        final List<Changeset> pushed = new ArrayList<Changeset>();
+        for (int i = 0; i < messages.length; i++) {
+            Changeset changeset = mockChangeset("pushed-" + i);
+            when(changeset.getMessage()).thenReturn(messages[i]);
+            pushed.add(changeset);
+        }
+        when(historyService.getChangesetsBetween(isA(ChangesetsBetweenRequest.class), isA(PageRequest.class))).thenAnswer(new Answer<Page<Changeset>>() {
+            @Override
+            public Page<Changeset> answer(InvocationOnMock invocation) throws Throwable {
+                PageRequest request = (PageRequest) invocation.getArguments()[1];
+                int end = Math.min(pushed.size(), request.getStart() + request.getLimit());
+                Page<Changeset> page = mock(Page.class);
+                when(page.getValues()).thenReturn(pushed.subList(request.getStart(), end));
+                when(page.getIsLastPage()).thenReturn(end == pushed.size());
+                return page;
+            }
+        });
+    }
+
+    /**
+     * Links every changeset of {@code changesets} to the next one as its first parent.
+     */
+    private void mockFirstParents(List<Changeset> changesets) {
+        for (int i = 0; i + 1 < changesets.size(); i++) {
+            MinimalChangeset parent = mock(MinimalChangeset.class);
+            when(parent.getId()).thenReturn(changesets.get(i + 1).getId());
+            when(changesets.get(i).getParents()).thenReturn(Collections.singletonList(parent));
+        }
     }
 
     private Changeset mockChangeset(String fromHash) {
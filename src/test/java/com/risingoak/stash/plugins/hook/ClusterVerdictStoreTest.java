@@ -0,0 +1,133 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.atlassian.stash.repository.Repository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two nodes of a cluster, each with its own cache and index, sharing one store.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterVerdictStoreTest {
+    private static final String REF = "refs/heads/master";
+
+    @Mock
+    private EventPublisher eventPublisher;
+    @Mock
+    private Repository repository;
+
+    private BranchStateCache cacheA;
+    private BranchStateCache cacheB;
+    private BranchVerdictIndex indexA;
+    private BranchVerdictIndex indexB;
+    private PluginSettingsFactory pluginSettingsFactory;
+
+    @Before
+    public void setUp() {
+        when(repository.getId()).thenReturn(1);
+        pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(mock(PluginSettings.class));
+        VerdictStore store = new LocalVerdictStore();
+        cacheA = new BranchStateCache(eventPublisher, store);
+        cacheB = new BranchStateCache(eventPublisher, store);
+        indexA = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory, store);
+        indexB = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory, store);
+    }
+
+    @Test
+    public void shouldAnswerBranchCheckedOnAnotherNode() {
+        checkOnNodeA();
+
+        BranchVerdictIndex.IndexedBranch indexed = indexB.get(repository, REF, HookSettings.DEFAULT);
+        assertEquals("head", indexed.head);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, indexed.verdict.state);
+        assertEquals("head", indexed.verdict.commit);
+    }
+
+    @Test
+    public void shouldShareCommitStatesBetweenNodes() {
+        checkOnNodeA();
+
+        CommitWindow window = new CommitWindow(new String[]{"head", "parent"}, new String[]{"head", "parent"});
+        cacheB.fillKnownStates(window);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, window.states[0]);
+        assertEquals(AbstractRejectHook.BuildState.FAILED, window.states[1]);
+    }
+
+    @Test
+    public void shouldInvalidateVerdictsOnEveryNodeWhenABuildStatusIsSetOnOne() {
+        checkOnNodeA();
+        CommitWindow window = window();
+        cacheB.put(repository, HookSettings.DEFAULT, "head", window, verdict(), cacheB.getGeneration());
+
+        cacheA.invalidateCommit("head");
+
+        BranchVerdictIndex.IndexedBranch indexed = indexB.get(repository, REF, HookSettings.DEFAULT);
+        assertNull(indexed.verdict);
+        assertNull(indexed.window.states[0]);
+        assertNull(cacheB.getVerdict(repository, HookSettings.DEFAULT, "head"));
+    }
+
+    @Test
+    public void shouldReadTheStatesOfAWindowInOneCall() {
+        final AtomicInteger reads = new AtomicInteger();
+        VerdictStore store = new LocalVerdictStore() {
+            @Override
+            public String get(String key) {
+                reads.incrementAndGet();
+                return super.get(key);
+            }
+
+            @Override
+            public Map<String, String> getAll(Collection<String> keys) {
+                reads.incrementAndGet();
+                return super.getAll(keys);
+            }
+        };
+        BranchStateCache cache = new BranchStateCache(eventPublisher, store);
+        BranchVerdictIndex index = new BranchVerdictIndex(eventPublisher, pluginSettingsFactory, store);
+        cache.put(repository, HookSettings.DEFAULT, "head", window(), verdict(), cache.getGeneration());
+        index.put(repository, REF, HookSettings.DEFAULT, "head", window(), verdict());
+
+        reads.set(0);
+        assertEquals(verdict().state, cache.getVerdict(repository, HookSettings.DEFAULT, "head").state);
+        assertEquals(1, reads.get());
+
+        reads.set(0);
+        assertEquals(verdict().state, index.get(repository, REF, HookSettings.DEFAULT).verdict.state);
+        // the branch itself, then the states of its commits
+        assertEquals(2, reads.get());
+    }
+
+    private void checkOnNodeA() {
+        CommitWindow window = window();
+        cacheA.put(repository, HookSettings.DEFAULT, "head", window, verdict(), cacheA.getGeneration());
+        indexA.put(repository, REF, HookSettings.DEFAULT, "head", window, verdict());
+    }
+
+    private static CommitWindow window() {
+        CommitWindow window = new CommitWindow(new String[]{"head", "parent"}, new String[]{"head", "parent"});
+        window.states[0] = AbstractRejectHook.BuildState.SUCCESSFUL;
+        window.states[1] = AbstractRejectHook.BuildState.FAILED;
+        return window;
+    }
+
+    private static AbstractRejectHook.BranchState verdict() {
+        return new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL, "head");
+    }
+}
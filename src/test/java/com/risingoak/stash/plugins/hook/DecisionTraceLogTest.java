@@ -0,0 +1,101 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecisionTraceLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReturnTheLatestDecisionsOfARepositoryNewestFirst() {
+        DecisionTraceLog log = new DecisionTraceLog(4, null, DecisionTraceLog.DEFAULT_MAX_FILE_SIZE, 1);
+        for (int i = 0; i < 6; i++) {
+            log.record(trace(i % 2, "refs/heads/" + i));
+        }
+
+        List<DecisionTrace> recent = log.getRecent(1, 10);
+
+        assertEquals(2, recent.size());
+        assertEquals("refs/heads/5", recent.get(0).refId);
+        assertEquals("refs/heads/3", recent.get(1).refId);
+        assertEquals(1, log.getRecent(0, 1).size());
+    }
+
+    @Test
+    public void shouldAppendTracesToTheLogFileAndRotateIt() throws Exception {
+        File directory = new File(folder.getRoot(), "log");
+        DecisionTraceLog log = new DecisionTraceLog(16, directory, 1200, 2);
+        for (int i = 0; i < 6; i++) {
+            log.record(trace(1, "refs/heads/" + i));
+        }
+        log.drain();
+        log.destroy();
+
+        List<String> rotated = readLines(new File(directory, DecisionTraceLog.FILE_NAME + ".1"));
+        List<String> current = readLines(new File(directory, DecisionTraceLog.FILE_NAME));
+        assertFalse(rotated.isEmpty());
+        assertFalse(current.isEmpty());
+        assertEquals(6, rotated.size() + current.size());
+        JsonObject first = new JsonParser().parse(rotated.get(0)).getAsJsonObject();
+        assertEquals("push", first.get("kind").getAsString());
+        assertEquals("refs/heads/0", first.get("ref").getAsString());
+        assertEquals("FAILED", first.get("verdict").getAsString());
+        assertEquals("FAILED", first.getAsJsonArray("commits").get(0).getAsJsonObject().get("state").getAsString());
+        assertFalse(first.get("accepted").getAsBoolean());
+    }
+
+    @Test
+    public void shouldCountTracesOverwrittenBeforeTheyAreWritten() throws Exception {
+        File directory = new File(folder.getRoot(), "log");
+        DecisionTraceLog log = new DecisionTraceLog(2, directory, DecisionTraceLog.DEFAULT_MAX_FILE_SIZE, 1);
+        for (int i = 0; i < 5; i++) {
+            log.record(trace(1, "refs/heads/" + i));
+        }
+        log.drain();
+        log.destroy();
+
+        assertEquals(3, log.getDropped());
+        List<String> lines = readLines(new File(directory, DecisionTraceLog.FILE_NAME));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("refs/heads/3"));
+    }
+
+    private static DecisionTrace trace(int repositoryId, String refId) {
+        CommitWindow window = new CommitWindow(new String[]{"abc123"}, new String[]{"abc"});
+        window.states[0] = AbstractRejectHook.BuildState.FAILED;
+        return new DecisionTrace.Builder(DecisionTrace.PUSH, repositoryId, refId).head("abc123")
+                .pushed("def456", AbstractRejectHook.BuildState.UNDEFINED)
+                .verdict(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "abc123"))
+                .window(window)
+                .build(false);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,43 @@
+package com.risingoak.stash.plugins.hook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FixMatcherTest {
+    private static final String DISPLAY_ID = "a1b2c3d4e5f";
+
+    @Test
+    public void shouldMatchTheMessageTheHookAsksFor() {
+        assertTrue(FixMatcher.DEFAULT.isFix("fixes a1b2c3d4e5f", DISPLAY_ID));
+    }
+
+    @Test
+    public void shouldMatchAbbreviatedAndFullHashes() {
+        assertTrue(FixMatcher.DEFAULT.isFix("fixes a1b2c3d", DISPLAY_ID));
+        assertTrue(FixMatcher.DEFAULT.isFix("Fixes A1B2C3D4E5F60718293A4B5C6D7E8F90123456", DISPLAY_ID));
+    }
+
+    @Test
+    public void shouldMatchTrailers() {
+        assertTrue(FixMatcher.DEFAULT.isFix("Repair the build\n\nFixes-build: a1b2c3d4", DISPLAY_ID));
+    }
+
+    @Test
+    public void shouldNotMatchOtherCommitsOrShortHashes() {
+        assertFalse(FixMatcher.DEFAULT.isFix("fixes b1b2c3d4e5f", DISPLAY_ID));
+        assertFalse(FixMatcher.DEFAULT.isFix("fixes a1b2c3", DISPLAY_ID));
+        assertFalse(FixMatcher.DEFAULT.isFix("fixes a1b2c3d4e5fg", DISPLAY_ID));
+        assertFalse(FixMatcher.DEFAULT.isFix("prefixes a1b2c3d4e5f", DISPLAY_ID));
+    }
+
+    @Test
+    public void shouldOnlyAcceptConfiguredTokens() {
+        FixMatcher matcher = new FixMatcher("repairs, build-fix:");
+
+        assertTrue(matcher.isFix("build-fix: a1b2c3d", DISPLAY_ID));
+        assertTrue(matcher.isFix("repairs a1b2c3d", DISPLAY_ID));
+        assertFalse(matcher.isFix("fixes a1b2c3d", DISPLAY_ID));
+    }
+}
@@ -0,0 +1,41 @@
+package com.risingoak.stash.plugins.hook;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldReportPercentilesWithinAFactorOfTwo() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.99));
+        assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void shouldReportZeroWhenEmpty() {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void shouldForgetEverythingOnReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        histogram.reset();
+        histogram.record(3);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(3, histogram.getPercentile(0.99));
+    }
+}
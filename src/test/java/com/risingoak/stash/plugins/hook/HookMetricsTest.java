@@ -0,0 +1,76 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.repository.Repository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HookMetricsTest {
+
+    @Mock
+    private Repository repository;
+    @Mock
+    private EventPublisher eventPublisher;
+
+    private MBeanServer mBeanServer;
+    private HookMetrics hookMetrics;
+
+    @Before
+    public void setUp() {
+        when(repository.getId()).thenReturn(42);
+        mBeanServer = MBeanServerFactory.newMBeanServer();
+        hookMetrics = new HookMetrics(eventPublisher, mBeanServer);
+        hookMetrics.afterPropertiesSet();
+    }
+
+    @Test
+    public void shouldPublishRepositoryMetricsAsAnMBean() throws Exception {
+        RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+        metrics.recordDecision(5000000);
+        metrics.recordVerdict(AbstractRejectHook.BuildState.FAILED);
+        metrics.recordCacheHit();
+
+        assertSame(metrics, hookMetrics.forRepository(repository));
+        assertEquals(1L, mBeanServer.getAttribute(HookMetrics.getRepositoryName(42), "FailedVerdicts"));
+        assertEquals(1.0, mBeanServer.getAttribute(HookMetrics.getRepositoryName(42), "CacheHitRatio"));
+        assertTrue((Double) mBeanServer.getAttribute(HookMetrics.getRepositoryName(42), "DecisionTimeP99Millis") >= 5.0);
+    }
+
+    @Test
+    public void shouldUnregisterTheMetricsOfADeletedRepository() {
+        RepositoryMetrics metrics = hookMetrics.forRepository(repository);
+
+        hookMetrics.onRepositoryDeleted(new RepositoryDeletedEvent(this, repository));
+
+        assertFalse(mBeanServer.isRegistered(HookMetrics.getRepositoryName(42)));
+        assertNotSame(metrics, hookMetrics.forRepository(repository));
+        assertTrue(mBeanServer.isRegistered(HookMetrics.getRepositoryName(42)));
+    }
+
+    @Test
+    public void shouldUnregisterEverythingOnDestroy() {
+        hookMetrics.forRepository(repository);
+
+        hookMetrics.destroy();
+
+        verify(eventPublisher).unregister(hookMetrics);
+        assertFalse(mBeanServer.isRegistered(HookMetrics.getLookupsName()));
+        assertFalse(mBeanServer.isRegistered(HookMetrics.getRepositoryName(42)));
+    }
+}
@@ -0,0 +1,130 @@
+package com.risingoak.stash.plugins.hook;
+
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.setting.SettingsValidationErrors;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class HookSettingsTest {
+
+    @Test
+    public void shouldDefaultToFixedWindowWithoutSettings() {
+        HookSettings settings = HookSettings.of(null);
+
+        assertFalse(settings.isAdaptive());
+        assertEquals(AbstractRejectHook.COMMITS_TO_INSPECT, settings.getCommitsToInspect());
+        assertEquals(AbstractRejectHook.COMMITS_TO_INSPECT, settings.getMaxCommitsToInspect());
+    }
+
+    @Test
+    public void shouldParseFormValues() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.COMMITS_TO_INSPECT, "5");
+        values.put(HookSettings.ADAPTIVE, true);
+        values.put(HookSettings.MAX_COMMITS_TO_INSPECT, " 50 ");
+
+        HookSettings settings = HookSettings.of(settings(values));
+
+        assertTrue(settings.isAdaptive());
+        assertEquals(5, settings.getCommitsToInspect());
+        assertEquals(50, settings.getMaxCommitsToInspect());
+        assertEquals(HookSettings.DEFAULT_MAX_INSPECTION_TIME, settings.getMaxInspectionTime());
+    }
+
+    @Test
+    public void shouldIgnoreNonPositiveNumbers() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.COMMITS_TO_INSPECT, 0);
+        values.put(HookSettings.MAX_FIX_COMMITS, -5L);
+        values.put(HookSettings.MAX_COMMITS_TO_INSPECT, 50);
+
+        HookSettings settings = HookSettings.of(settings(values));
+
+        assertEquals(AbstractRejectHook.COMMITS_TO_INSPECT, settings.getCommitsToInspect());
+        assertEquals(HookSettings.DEFAULT_MAX_FIX_COMMITS, settings.getMaxFixCommits());
+    }
+
+    @Test
+    public void shouldFallBackToServerTimeoutPolicyUnlessTheRepositorySetsOne() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.MAX_DECISION_TIME, "500");
+        values.put(HookSettings.TIMEOUT_POLICY, HookSettings.FAIL_CLOSED);
+
+        HookSettings settings = HookSettings.of(settings(values));
+
+        assertEquals(500, settings.getMaxDecisionTime(10000));
+        assertFalse(settings.isFailOpen(true));
+        assertEquals(10000, HookSettings.DEFAULT.getMaxDecisionTime(10000));
+        assertTrue(HookSettings.DEFAULT.isFailOpen(true));
+        assertEquals(HookSettings.DEFAULT_MAX_VERDICT_AGE * 1000L, HookSettings.DEFAULT.getMaxVerdictAge());
+    }
+
+    @Test
+    public void shouldUseDifferentCacheKeysForDifferentWindows() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.COMMITS_TO_INSPECT, "5");
+
+        assertFalse(HookSettings.DEFAULT.getCacheKey().equals(HookSettings.of(settings(values)).getCacheKey()));
+    }
+
+    @Test
+    public void shouldUseDifferentCacheKeysForFirstParentHistory() {
+        HookSettings settings = HookSettings.of(settings(Collections.<String, Object>singletonMap(HookSettings.FIRST_PARENT, true)));
+
+        assertTrue(settings.isFirstParent());
+        assertFalse(HookSettings.DEFAULT.isFirstParent());
+        assertFalse(HookSettings.DEFAULT.getCacheKey().equals(settings.getCacheKey()));
+    }
+
+    @Test
+    public void shouldCompileAggregationPolicyIntoTheCacheKey() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.OPTIONAL_BUILDS, "nightly");
+
+        HookSettings settings = HookSettings.of(settings(values));
+
+        assertFalse(settings.getAggregationPolicy().isDefault());
+        assertFalse(HookSettings.DEFAULT.getCacheKey().equals(settings.getCacheKey()));
+        assertSame(AggregationPolicy.DEFAULT, HookSettings.DEFAULT.getAggregationPolicy());
+    }
+
+    @Test
+    public void shouldRejectNonPositiveNumbers() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(HookSettings.COMMITS_TO_INSPECT, "0");
+        values.put(HookSettings.MAX_COMMITS_TO_INSPECT, "lots");
+        values.put(HookSettings.MAX_INSPECTION_TIME, "100");
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+
+        HookSettings.validate(settings(values), errors);
+
+        verify(errors).addFieldError(eq(HookSettings.COMMITS_TO_INSPECT), anyString());
+        verify(errors).addFieldError(eq(HookSettings.MAX_COMMITS_TO_INSPECT), anyString());
+        verify(errors, never()).addFieldError(eq(HookSettings.MAX_INSPECTION_TIME), anyString());
+    }
+
+    @Test
+    public void shouldRejectPendingWaitsAboveTheServerLimit() {
+        SettingsValidationErrors errors = mock(SettingsValidationErrors.class);
+
+        HookSettings.validate(settings(Collections.<String, Object>singletonMap(HookSettings.MAX_PENDING_WAIT, "600")), errors, 300);
+        HookSettings.validate(settings(Collections.<String, Object>singletonMap(HookSettings.MAX_PENDING_WAIT, "300")), errors, 300);
+
+        verify(errors).addFieldError(eq(HookSettings.MAX_PENDING_WAIT), anyString());
+    }
+
+    private Settings settings(Map<String, Object> values) {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+        return settings;
+    }
+}
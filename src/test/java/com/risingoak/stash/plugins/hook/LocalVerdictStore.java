@@ -0,0 +1,45 @@
+package com.risingoak.stash.plugins.hook;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process stand-in for the store of a cluster, shared by several caches and indexes in the same JVM.
+ */
+class LocalVerdictStore implements VerdictStore {
+    private final Map<String, String> values = new ConcurrentHashMap<String, String>();
+
+    @Override
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) {
+        Map<String, String> found = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = values.get(key);
+            if (value != null) {
+                found.put(key, value);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        values.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<String, String> values) {
+        this.values.putAll(values);
+    }
+
+    @Override
+    public void remove(String key) {
+        values.remove(key);
+    }
+}
@@ -1,5 +1,8 @@
 package com.risingoak.stash.plugins.hook;
 
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.stash.build.BuildStatusService;
 import com.atlassian.stash.content.Changeset;
 import com.atlassian.stash.commit.CommitService;
@@ -10,16 +13,22 @@ import com.atlassian.stash.repository.Branch;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.repository.RefService;
 import com.atlassian.stash.scm.pull.MergeRequest;
+import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.util.Page;
 import com.atlassian.stash.util.PageRequest;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import javax.management.MBeanServerFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -36,6 +45,12 @@ public class MergeRequestBlockHookTest {
     @Mock
     private CommitService historyService;
 
+    @Mock
+    private EventPublisher eventPublisher;
+
+    private final HookMetrics hookMetrics = new HookMetrics(MBeanServerFactory.newMBeanServer());
+    private final List<StatusLookupExecutor> lookupExecutors = new ArrayList<StatusLookupExecutor>();
+
     @Mock
     private RepositoryMergeRequestCheckContext repositoryHookContext;
     @Mock
@@ -55,13 +70,24 @@ public class MergeRequestBlockHookTest {
         when(mergeRequest.getPullRequest()).thenReturn(pullRequest);
         when(pullRequest.getToRef()).thenReturn(toRef);
         when(toRef.getRepository()).thenReturn(repository);
+        when(toRef.getId()).thenReturn(DEFAULT_BRANCH_REF);
+        when(toRef.getDisplayId()).thenReturn("master");
         when(repositoryMetadataService.getDefaultBranch(isA(Repository.class))).thenReturn(branch);
         when(branch.getId()).thenReturn(DEFAULT_BRANCH_REF);
+        when(branch.getLatestChangeset()).thenReturn("branch-head");
+        when(repositoryMetadataService.resolveRef(isA(Repository.class), anyString())).thenReturn(branch);
         Page<Changeset> changesetsPage = mock(Page.class);
         when(changesetsPage.getValues()).thenReturn(new ArrayList<Changeset>());
         when(historyService.getChangesets(eq(repository), anyString(), anyString(), isA(PageRequest.class))).thenReturn(changesetsPage);
     }
 
+    @After
+    public void tearDown() {
+        for (StatusLookupExecutor lookupExecutor : lookupExecutors) {
+            lookupExecutor.destroy();
+        }
+    }
+
     @Test
     public void allowMerge_mostRecentBuildIsSuccessful() {
         MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL, "hash"));
@@ -98,12 +124,104 @@ public class MergeRequestBlockHookTest {
         verify(mergeRequest).veto(anyString(), anyString());
     }
 
+    @Test
+    public void shareVerdictBetweenPullRequestsIntoTheSameHead() {
+        when(toRef.getLatestChangeset()).thenReturn("head");
+        MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "hash"));
+
+        buildHook.check(repositoryHookContext);
+        buildHook.check(repositoryHookContext);
+
+        verify(mergeRequest, times(2)).veto(anyString(), anyString());
+        verify(historyService, times(1)).getChangesets(eq(repository), eq("head"), anyString(), isA(PageRequest.class));
+    }
+
+    @Test
+    public void recomputeVerdictWhenTargetBranchMoves() {
+        when(toRef.getLatestChangeset()).thenReturn("head", "new-head");
+        MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.SUCCESSFUL, "hash"));
+
+        buildHook.check(repositoryHookContext);
+        buildHook.check(repositoryHookContext);
+
+        verify(historyService).getChangesets(eq(repository), eq("head"), anyString(), isA(PageRequest.class));
+        verify(historyService).getChangesets(eq(repository), eq("new-head"), anyString(), isA(PageRequest.class));
+    }
+
+    @Test
+    public void allowMerge_targetBranchIsNotProtected() {
+        when(toRef.getId()).thenReturn("refs/heads/feature/foo");
+        MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "hash"));
+
+        buildHook.check(repositoryHookContext);
+
+        verify(mergeRequest, never()).veto(anyString(), anyString());
+        verifyZeroInteractions(historyService, buildStatusService);
+    }
+
+    @Test
+    public void rejectMerge_protectedTargetBranchIsFailed() {
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(Collections.<String, Object>singletonMap(HookSettings.PROTECTED_BRANCHES, "release/*"));
+        when(repositoryHookContext.getSettings()).thenReturn(settings);
+        when(toRef.getId()).thenReturn("refs/heads/release/1.0");
+        when(toRef.getLatestChangeset()).thenReturn("release-head");
+        MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "hash"));
+
+        buildHook.check(repositoryHookContext);
+
+        verify(mergeRequest).veto(anyString(), anyString());
+        verify(historyService).getChangesets(eq(repository), eq("release-head"), anyString(), isA(PageRequest.class));
+    }
+
+    @Test
+    public void resolveTargetHeadWhenThePullRequestDoesNotCarryIt() {
+        MergeRequestBlockHook buildHook = mockBuildHook(new AbstractRejectHook.BranchState(AbstractRejectHook.BuildState.FAILED, "hash"));
+
+        buildHook.check(repositoryHookContext);
+        buildHook.check(repositoryHookContext);
+
+        verify(mergeRequest, times(2)).veto(anyString(), anyString());
+        verify(historyService, times(1)).getChangesets(eq(repository), eq("branch-head"), anyString(), isA(PageRequest.class));
+        verify(historyService, never()).getChangesets(eq(repository), eq(DEFAULT_BRANCH_REF), anyString(), isA(PageRequest.class));
+    }
+
+    @Test
+    public void countMergesLetThroughByTheFailOpenPolicy() {
+        MergeRequestBlockHook buildHook = new MergeRequestBlockHook(repositoryMetadataService, buildStatusService, historyService,
+                new BranchStateCache(eventPublisher), lookupExecutor(0, true, true), verdictIndex(), hookMetrics);
+
+        buildHook.check(repositoryHookContext);
+
+        verify(mergeRequest, never()).veto(anyString(), anyString());
+        assertEquals(1, hookMetrics.forRepository(repository).getFailOpens());
+    }
+
     private MergeRequestBlockHook mockBuildHook(final AbstractRejectHook.BranchState branchState) {
-        return new MergeRequestBlockHook(repositoryMetadataService, buildStatusService, historyService) {
+        BranchVerdictIndex index = verdictIndex();
+        BranchStateResolver resolver = new BranchStateResolver(historyService, buildStatusService, new BranchStateCache(eventPublisher),
+                lookupExecutor(), index, hookMetrics) {
             @Override
-            protected BranchState getAggregatedStatus(Page<Changeset> changesets) {
+            AbstractRejectHook.BranchState getAggregatedStatus(CommitWindow window, long deadline) {
                 return branchState;
             }
         };
+        return new MergeRequestBlockHook(repositoryMetadataService, historyService, resolver, index, hookMetrics, null);
+    }
+
+    private StatusLookupExecutor lookupExecutor() {
+        return lookupExecutor(10000, true, true);
+    }
+
+    private StatusLookupExecutor lookupExecutor(long timeout, boolean failOpen, boolean bulkLookups) {
+        StatusLookupExecutor lookupExecutor = new StatusLookupExecutor(2, 10, timeout, failOpen, bulkLookups);
+        lookupExecutors.add(lookupExecutor);
+        return lookupExecutor;
+    }
+
+    private BranchVerdictIndex verdictIndex() {
+        PluginSettingsFactory pluginSettingsFactory = mock(PluginSettingsFactory.class);
+        when(pluginSettingsFactory.createGlobalSettings()).thenReturn(mock(PluginSettings.class));
+        return new BranchVerdictIndex(eventPublisher, pluginSettingsFactory);
     }
-}
\ No newline at end of file
+}
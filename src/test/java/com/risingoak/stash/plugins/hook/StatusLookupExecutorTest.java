@@ -0,0 +1,129 @@
+package com.risingoak.stash.plugins.hook;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StatusLookupExecutorTest {
+
+    private StatusLookupExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new StatusLookupExecutor(4, 10, 10000, true, false);
+    }
+
+    @After
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void shouldResolveEveryCommitUntilTheNewestDecisiveOne() {
+        Map<String, AbstractRejectHook.BuildState> states = new HashMap<String, AbstractRejectHook.BuildState>();
+        states.put("a", AbstractRejectHook.BuildState.INPROGRESS);
+        states.put("b", AbstractRejectHook.BuildState.UNDEFINED);
+        states.put("c", AbstractRejectHook.BuildState.FAILED);
+        CommitWindow window = window("a", "b", "c");
+
+        executor.resolve(window, 0, deadline(), lookup(states, null));
+
+        assertEquals(AbstractRejectHook.BuildState.INPROGRESS, window.states[0]);
+        assertEquals(AbstractRejectHook.BuildState.UNDEFINED, window.states[1]);
+        assertEquals(AbstractRejectHook.BuildState.FAILED, window.states[2]);
+    }
+
+    @Test
+    public void shouldCancelLookupsOlderThanTheNewestDecisiveCommit() {
+        Map<String, AbstractRejectHook.BuildState> states = new HashMap<String, AbstractRejectHook.BuildState>();
+        states.put("a", AbstractRejectHook.BuildState.SUCCESSFUL);
+        CountDownLatch never = new CountDownLatch(1);
+        CommitWindow window = window("a", "slow-1", "slow-2");
+
+        long start = System.currentTimeMillis();
+        executor.resolve(window, 0, deadline(), lookup(states, never));
+
+        assertTrue("resolve waited for lookups it did not need", System.currentTimeMillis() - start < 5000);
+        assertEquals(AbstractRejectHook.BuildState.SUCCESSFUL, window.states[0]);
+        assertNull(window.states[1]);
+        assertNull(window.states[2]);
+    }
+
+    @Test
+    public void shouldGiveUpAtTheDeadline() {
+        CountDownLatch never = new CountDownLatch(1);
+        CommitWindow window = window("slow-1");
+
+        executor.resolve(window, 0, System.currentTimeMillis() + 50, lookup(Collections.<String, AbstractRejectHook.BuildState>emptyMap(), never));
+
+        assertNull(window.states[0]);
+    }
+
+    @Test
+    public void shouldOnlyLookUpUnknownStates() {
+        final Set<String> lookedUp = Collections.synchronizedSet(new HashSet<String>());
+        CommitWindow window = window("a", "b");
+        window.states[0] = AbstractRejectHook.BuildState.INPROGRESS;
+
+        executor.resolve(window, 0, deadline(), new StatusLookupExecutor.StatusLookup() {
+            @Override
+            public AbstractRejectHook.BuildState getBuildState(String changesetId) {
+                lookedUp.add(changesetId);
+                return AbstractRejectHook.BuildState.SUCCESSFUL;
+            }
+        });
+
+        assertEquals(Collections.singleton("b"), lookedUp);
+        assertFalse(lookedUp.contains("a"));
+    }
+
+    @Test
+    public void shouldKnowWhenWindowIsDecided() {
+        CommitWindow window = window("a", "b", "c");
+        assertFalse(StatusLookupExecutor.isDecided(window));
+
+        window.states[1] = AbstractRejectHook.BuildState.FAILED;
+        assertFalse(StatusLookupExecutor.isDecided(window));
+
+        window.states[0] = AbstractRejectHook.BuildState.INPROGRESS;
+        assertTrue(StatusLookupExecutor.isDecided(window));
+    }
+
+    private StatusLookupExecutor.StatusLookup lookup(final Map<String, AbstractRejectHook.BuildState> states, final CountDownLatch slow) {
+        return new StatusLookupExecutor.StatusLookup() {
+            @Override
+            public AbstractRejectHook.BuildState getBuildState(String changesetId) {
+                if (changesetId.startsWith("slow")) {
+                    try {
+                        slow.await(1, TimeUnit.MINUTES);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                AbstractRejectHook.BuildState state = states.get(changesetId);
+                return state == null ? AbstractRejectHook.BuildState.UNDEFINED : state;
+            }
+        };
+    }
+
+    private long deadline() {
+        return System.currentTimeMillis() + 10000;
+    }
+
+    private CommitWindow window(String... ids) {
+        return new CommitWindow(ids, ids);
+    }
+}